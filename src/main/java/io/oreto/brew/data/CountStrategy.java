@@ -0,0 +1,201 @@
+package io.oreto.brew.data;
+
+import io.oreto.brew.map.Cache;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * How the total of a paged query is found. The strategy name is reported by the pager as counted by.
+ */
+public interface CountStrategy {
+    String name();
+
+    /**
+     * @return The number of rows to read past the page size with the page query
+     */
+    default int lookahead() {
+        return 0;
+    }
+
+    /**
+     * @return The total to report or null when there is none
+     */
+    Long count(Counting<?> counting);
+
+    static CountStrategy exact() {
+        return Exact.instance;
+    }
+
+    /**
+     * Cache the count of each query for the ttl. Strategies of the same ttl share one cache, so a strategy
+     * made for every request still finds the counts of earlier requests.
+     */
+    static CountStrategy cached(Duration ttl) {
+        return new Cached(ttl);
+    }
+
+    static CountStrategy hasMore() {
+        return HasMore.instance;
+    }
+
+    static CountStrategy capped(long max) {
+        return new Capped(max);
+    }
+
+    /**
+     * What a strategy can count with for one query
+     */
+    class Counting<T> {
+        private final Class<T> entityClass;
+        private final String key;
+        private final Paginate pager;
+        private final int found;
+        private final Supplier<Long> exact;
+        private final LongFunction<Long> upTo;
+
+        public Counting(Class<T> entityClass
+                , String key
+                , Paginate pager
+                , int found
+                , Supplier<Long> exact
+                , LongFunction<Long> upTo) {
+            this.entityClass = entityClass;
+            this.key = key;
+            this.pager = pager;
+            this.found = found;
+            this.exact = exact;
+            this.upTo = upTo;
+        }
+
+        public Class<T> getEntityClass() {
+            return entityClass;
+        }
+
+        /**
+         * @return The entity and the normalized query, equal for queries which select the same rows
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Paginate getPager() {
+            return pager;
+        }
+
+        /**
+         * @return The number of rows on the page, -1 when the count runs before the page is read
+         */
+        public int getFound() {
+            return found;
+        }
+
+        public Long exact() {
+            return exact.get();
+        }
+
+        /**
+         * @return The count, stopping at max
+         */
+        public Long upTo(long max) {
+            return upTo.apply(max);
+        }
+    }
+
+    class Exact implements CountStrategy {
+        private static final Exact instance = new Exact();
+
+        @Override
+        public String name() {
+            return "exact";
+        }
+
+        @Override
+        public Long count(Counting<?> counting) {
+            return counting.exact();
+        }
+    }
+
+    class Cached implements CountStrategy {
+        private static final Map<Duration, Cache<String, Long>> caches = new ConcurrentHashMap<>();
+
+        private final Cache<String, Long> cache;
+
+        Cached(Duration ttl) {
+            this.cache = caches.computeIfAbsent(ttl, k -> Cache.<String, Long>of().ttl(k));
+        }
+
+        /**
+         * @return The cache shared by the strategies of this ttl, keyed by entity and query
+         */
+
+        public Cache<String, Long> cache() {
+            return cache;
+        }
+
+        @Override
+        public String name() {
+            return "cached";
+        }
+
+        @Override
+        public Long count(Counting<?> counting) {
+            return cache.get(counting.getKey(), k -> counting.exact());
+        }
+    }
+
+    /**
+     * Read one more row than the page size and only report whether another page exists.
+     * The count is a lower bound, the rows up to the end of this page plus one when there are more.
+     */
+    class HasMore implements CountStrategy {
+        private static final HasMore instance = new HasMore();
+
+        @Override
+        public String name() {
+            return "has_more";
+        }
+
+        @Override
+        public int lookahead() {
+            return 1;
+        }
+
+        @Override
+        public Long count(Counting<?> counting) {
+            Paginate pager = counting.getPager();
+            Boolean more = pager.getMore();
+            return pager.getOffset() + Math.max(counting.getFound(), 0) + (Boolean.TRUE.equals(more) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Stop counting at max, a count of max means there are at least max rows
+     */
+    class Capped implements CountStrategy {
+        private final long max;
+
+        Capped(long max) {
+            if (max < 1)
+                throw new IllegalArgumentException("count cap must be positive");
+            this.max = max;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String name() {
+            return "capped";
+        }
+
+        @Override
+        public Long count(Counting<?> counting) {
+            return counting.upTo(max);
+        }
+    }
+}
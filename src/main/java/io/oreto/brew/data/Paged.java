@@ -22,4 +22,12 @@ public class Paged<T> {
     public List<T> getPage() {
         return page;
     }
+
+    public String getNext() {
+        return pager.getNext();
+    }
+
+    public String getCountedBy() {
+        return pager.getCountedBy();
+    }
 }
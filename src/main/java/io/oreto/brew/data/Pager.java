@@ -32,8 +32,14 @@ public class Pager implements Paginate {
     }
 
     public static Pager of(Paginate paginate) {
-        return Pager.of(paginate.getPage(), paginate.getSize(), paginate.getCount(), paginate.getPages())
-                .withSorting(paginate.getSorting());
+        Pager pager = new Pager(paginate.getPage(), paginate.getSize()).withSorting(paginate.getSorting());
+        pager.count = paginate.getCount();
+        pager.pages = paginate.getPages();
+        pager.keyset = paginate.isKeyset();
+        pager.after = paginate.getAfter();
+        pager.parallelCount = paginate.isParallelCount();
+        pager.countStrategy = paginate.getCountStrategy();
+        return pager;
     }
 
     public static Pager page(int page) {
@@ -52,7 +58,15 @@ public class Pager implements Paginate {
     private List<Sortable> sorting;
     private boolean zeroBased;
 
+    private String after;
+    private String next;
+
     @JsonIgnore private boolean countEnabled = true;
+    @JsonIgnore private boolean keyset;
+    @JsonIgnore private boolean parallelCount;
+    @JsonIgnore private CountStrategy countStrategy = CountStrategy.exact();
+    private String countedBy;
+    private Boolean more;
 
     public Pager() {}
 
@@ -119,6 +133,91 @@ public class Pager implements Paginate {
         return countEnabled;
     }
 
+    /**
+     * Count on a separate connection while the page is read, so the total time is the slower of the two.
+     * The count can't see uncommitted changes, so it only runs in parallel outside of an active transaction.
+     */
+    public Pager parallelCount() {
+        this.parallelCount = true;
+        return this;
+    }
+
+    @Override
+    public boolean isParallelCount() {
+        return parallelCount;
+    }
+
+    public Pager withCountStrategy(CountStrategy countStrategy) {
+        this.countStrategy = countStrategy;
+        return this;
+    }
+
+    @Override
+    public CountStrategy getCountStrategy() {
+        return countStrategy;
+    }
+
+    @Override
+    public String getCountedBy() {
+        return countedBy;
+    }
+
+    @Override
+    public void setCountedBy(String countedBy) {
+        this.countedBy = countedBy;
+    }
+
+    /**
+     * @return Whether another page exists when it was looked ahead for, otherwise null
+     */
+    @Override
+    public Boolean getMore() {
+        return more;
+    }
+
+    @Override
+    public void setMore(Boolean more) {
+        this.more = more;
+    }
+
+    /**
+     * Page by seeking past the sort keys and id of the last row of the previous page instead of by offset.
+     * The first page is read normally, following pages start after the {@link #getNext()} token of the previous page.
+     * Sort keys must be attributes of the entity itself, not paths through its associations, and the ids are
+     * added as the final keys. Keys may be null, nulls sort last whatever the direction, which can differ from
+     * where the database puts them when the same sorting is used without keyset paging.
+     */
+    public Pager keyset() {
+        this.keyset = true;
+        return this;
+    }
+
+    public Pager after(String after) {
+        this.keyset = true;
+        this.after = after;
+        return this;
+    }
+
+    @Override
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    @Override
+    public String getAfter() {
+        return after;
+    }
+
+    @Override
+    public String getNext() {
+        return next;
+    }
+
+    @Override
+    public void setNext(String next) {
+        this.next = next;
+    }
+
     public Pager withOffset(int offset) {
         this.offset = offset;
         offsetToPage();
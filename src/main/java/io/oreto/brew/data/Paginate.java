@@ -14,6 +14,30 @@ public interface Paginate {
         return false;
     }
     boolean isCountEnabled();
+    default boolean isParallelCount() {
+        return false;
+    }
+    default CountStrategy getCountStrategy() {
+        return CountStrategy.exact();
+    }
+    default String getCountedBy() {
+        return null;
+    }
+    default void setCountedBy(String countedBy) { }
+    default Boolean getMore() {
+        return null;
+    }
+    default void setMore(Boolean more) { }
+    default boolean isKeyset() {
+        return false;
+    }
+    default String getAfter() {
+        return null;
+    }
+    default String getNext() {
+        return null;
+    }
+    default void setNext(String next) { }
     default Paginate withCount(long count) {
         setCount(count);
         return this;
@@ -21,7 +45,9 @@ public interface Paginate {
     Paginate disableCount();
 
     default Paginate nextPage() {
-       return hasNext() ? Pager.of(this).withPage(getPage() + 1) : this;
+        if (isKeyset())
+            return hasNext() ? Pager.of(this).withPage(getPage() + 1).after(getNext()) : this;
+        return hasNext() ? Pager.of(this).withPage(getPage() + 1) : this;
     }
 
     default Paginate previousPage() {
@@ -29,7 +55,9 @@ public interface Paginate {
     }
 
     default boolean hasNext() {
-        return getPage() < getPages();
+        if (isKeyset())
+            return getNext() != null;
+        return getMore() != null ? getMore() : getPage() < getPages();
     }
 
     default boolean hasPrevious() {
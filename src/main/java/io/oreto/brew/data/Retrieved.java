@@ -0,0 +1,32 @@
+package io.oreto.brew.data;
+
+import java.util.List;
+
+/**
+ * The entities found for a list of ids, in the order of the ids, and the ids which were not found
+ */
+public class Retrieved<ID, T> {
+    public static <ID, T> Retrieved<ID, T> of(List<T> entities, List<ID> missing) {
+        return new Retrieved<>(entities, missing);
+    }
+
+    List<T> entities;
+    List<ID> missing;
+
+    public Retrieved(List<T> entities, List<ID> missing) {
+        this.entities = entities;
+        this.missing = missing;
+    }
+
+    public List<T> getEntities() {
+        return entities;
+    }
+
+    public List<ID> getMissing() {
+        return missing;
+    }
+
+    public boolean isComplete() {
+        return missing.isEmpty();
+    }
+}
@@ -0,0 +1,173 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.data.Sort;
+import io.oreto.brew.data.Sortable;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A group by query computed by the database. Rows hold the group by paths followed by the aggregates,
+ * each aggregate is named by its alias, by default the function and path such as sum_orders_amount.
+ * The query predicates filter the rows before grouping, aggregate predicates such as count{items}::gt:3
+ * filter the groups.
+ */
+public class Aggregation {
+    public static Aggregation by(String... groupBy) {
+        return new Aggregation(Arrays.asList(groupBy));
+    }
+
+    public static String alias(Function function, String path) {
+        return path.isEmpty() ? function.name() : String.format("%s_%s", function.name(), path.replace('.', '_'));
+    }
+
+    public static class Aggregate {
+        private final Function function;
+        private final String path;
+        private final String alias;
+
+        Aggregate(Function function, String path, String alias) {
+            if (!function.isAggregate())
+                throw new IllegalArgumentException(function.name() + " is not an aggregate function");
+            this.function = function;
+            this.path = path;
+            this.alias = alias;
+        }
+
+        public Function getFunction() {
+            return function;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+    }
+
+    private final List<String> groupBy;
+    private final List<Aggregate> aggregates = new ArrayList<>();
+    private List<Sortable> sorting = new ArrayList<>();
+    private Integer limit;
+
+    protected Aggregation(List<String> groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * @param path The path to aggregate, empty for the entity itself
+     */
+    public Aggregation select(Function function, String path, String alias) {
+        aggregates.add(new Aggregate(function, path, alias));
+        return this;
+    }
+
+    public Aggregation select(Function function, String path) {
+        return select(function, path, alias(function, path));
+    }
+
+    public Aggregation count() {
+        return select(Function.count, "");
+    }
+
+    public Aggregation count(String path) {
+        return select(Function.count, path);
+    }
+
+    public Aggregation countDistinct(String path) {
+        return select(Function.count_distinct, path);
+    }
+
+    public Aggregation sum(String path) {
+        return select(Function.sum, path);
+    }
+
+    public Aggregation avg(String path) {
+        return select(Function.avg, path);
+    }
+
+    public Aggregation min(String path) {
+        return select(Function.min, path);
+    }
+
+    public Aggregation max(String path) {
+        return select(Function.max, path);
+    }
+
+    /**
+     * @param sorting Group by paths or aggregate aliases, such as name or sum_amount:desc
+     */
+    public Aggregation order(String... sorting) {
+        this.sorting = Sort.of(Arrays.asList(sorting));
+        return this;
+    }
+
+    public Aggregation limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    public List<Aggregate> getAggregates() {
+        return aggregates;
+    }
+
+    public List<Sortable> getSorting() {
+        return sorting;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return The names of the row values in select order
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>(groupBy);
+        names.addAll(aggregates.stream().map(Aggregate::getAlias).collect(Collectors.toList()));
+        return names;
+    }
+
+    public static class Row {
+        private final Map<String, Object> values;
+
+        Row(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        public Object get(String name) {
+            if (!values.containsKey(name))
+                throw new IllegalArgumentException("no value named " + name);
+            return values.get(name);
+        }
+
+        public <V> V get(String name, Class<V> type) {
+            return type.cast(get(name));
+        }
+
+        public Long getLong(String name) {
+            Number number = (Number) get(name);
+            return number == null ? null : number.longValue();
+        }
+
+        public Double getDouble(String name) {
+            Number number = (Number) get(name);
+            return number == null ? null : number.doubleValue();
+        }
+
+        public Map<String, Object> asMap() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+}
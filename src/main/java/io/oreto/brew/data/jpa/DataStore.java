@@ -1,18 +1,131 @@
 package io.oreto.brew.data.jpa;
 
+import io.oreto.brew.collections.Lists;
 import io.oreto.brew.data.Paged;
 import io.oreto.brew.data.Pager;
 import io.oreto.brew.data.Paginate;
+import io.oreto.brew.data.Retrieved;
 import io.oreto.brew.data.Sortable;
+import io.oreto.brew.map.Cache;
 import io.oreto.brew.obj.Reflect;
 
 import javax.persistence.*;
-import java.lang.reflect.Field;
+import javax.persistence.metamodel.EntityType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DataStore {
+    private static final Cache<List<Object>, Object> entities = Cache.<List<Object>, Object>of().disable();
+    // the evictions waiting for the caller's transaction to end
+    private static final Queue<Eviction> pending = new ConcurrentLinkedQueue<>();
+    // counts the evictions, a value read before one may be stale so it isn't cached
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The read through cache of the entities found by get without a fetch plan, keyed by entity class and id.
+     * It is disabled by default, enable it with entityCache().enable().maxSize(size).ttl(duration).
+     * Entries are evicted once save, update and delete commit, its hits and misses report the hit rate.
+     * The cache is skipped within a transaction or a session. Otherwise each get returns a detached copy of the
+     * cached entity, merge it to change it.
+     */
+    public static Cache<List<Object>, Object> entityCache() {
+        return entities;
+    }
+
+    private static void evict(EntityManager entityManager, EntityTransaction trx, Object t) {
+        if (Objects.isNull(t))
+            return;
+        Object id = entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(t);
+        Class<?> entityClass = t.getClass();
+        evict(trx, () -> {
+            QueryCache.invalidate(entityClass);
+            entities.removeIf(it -> Objects.equals(id, it.get(1)) && related((Class<?>) it.get(0), entityClass));
+        });
+    }
+
+    private static void evict(EntityTransaction trx, Class<?> entityClass) {
+        evict(trx, () -> {
+            QueryCache.invalidate(entityClass);
+            entities.removeIf(it -> related((Class<?>) it.get(0), entityClass));
+        });
+    }
+
+    // evict once the write is committed, right away when the call committed it itself,
+    // otherwise when the caller's transaction ends so no reader caches the old rows again before the commit
+    private static void evict(EntityTransaction trx, Runnable eviction) {
+        if (isActive(trx))
+            pending.add(new Eviction(trx, eviction));
+        else
+            evict(eviction);
+    }
+
+    private static void evict(Runnable eviction) {
+        synchronized (evictions) {
+            evictions.incrementAndGet();
+            eviction.run();
+        }
+    }
+
+    // run the evictions of the transactions which ended, before the caches are read
+    static void settle() {
+        if (!pending.isEmpty())
+            pending.removeIf(it -> {
+                if (isActive(it.trx))
+                    return false;
+                evict(it.eviction);
+                return true;
+            });
+    }
+
+    // cache the value unless something was evicted since the generation, when it was read
+    static <K, V> void cache(Cache<K, V> cache, K key, V value, long generation) {
+        synchronized (evictions) {
+            if (evictions.get() == generation)
+                cache.put(key, value);
+        }
+    }
+
+    static long generation() {
+        return evictions.get();
+    }
+
+    private static boolean isActive(EntityTransaction trx) {
+        try {
+            return trx != null && trx.isActive();
+        } catch (RuntimeException e) {
+            // the entity manager of the transaction is closed
+            return false;
+        }
+    }
+
+    private static class Eviction {
+        private final EntityTransaction trx;
+        private final Runnable eviction;
+
+        private Eviction(EntityTransaction trx, Runnable eviction) {
+            this.trx = trx;
+            this.eviction = eviction;
+        }
+    }
+
+    // an entity may be cached under its class, a super class or a proxy class
+    private static boolean related(Class<?> c1, Class<?> c2) {
+        return c1.isAssignableFrom(c2) || c2.isAssignableFrom(c1);
+    }
 
     public static <T> Long count(EntityManager entityManager, Class<T> entityClass, String q) {
         return QueryReader.count(q, entityManager, entityClass);
@@ -23,7 +136,7 @@ public class DataStore {
     }
 
     public static <T> boolean exists(EntityManager entityManager, Class<T> entityClass, String q) {
-        return count(entityManager, entityClass, q) > 0;
+        return QueryReader.exists(q, entityManager, entityClass);
     }
 
     public static <T> boolean exists(EntityManager entityManager, Class<T> entityClass) {
@@ -35,6 +148,8 @@ public class DataStore {
             , String q
             , Paginate pager
             , Fetch.Plan fetchPlan) {
+        if (QueryCache.isEnabled() && fetchPlan.isEmpty() && !inTransaction(entityManager))
+            return cachedFindAll(entityManager, entityClass, q, pager);
         return QueryReader.query(q
                 , pager
                 , entityManager
@@ -42,6 +157,59 @@ public class DataStore {
                 , fetchPlan);
     }
 
+    private static boolean inTransaction(EntityManager entityManager) {
+        EntityTransaction trx = tryTransaction(entityManager);
+        return trx != null && trx.isActive();
+    }
+
+    // find the page by the cached ids with chunked IN queries, a page with an entity which is gone is read again
+    private static <T> Paged<T> cachedFindAll(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Paginate pager) {
+        settle();
+        long generation = generation();
+        Cache<String, QueryCache.Entry> cache = QueryCache.of(entityClass);
+        QueryTemplate.Bound bound = QueryTemplate.of(entityClass, q);
+        String key = QueryCache.key(bound, pager);
+        QueryCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            Retrieved<Object, T> retrieved = getAll(entityManager, entityClass, entry.getIds());
+            if (retrieved.isComplete()) {
+                entry.apply(pager);
+                return Paged.of(retrieved.getEntities(), pager);
+            }
+            cache.remove(key);
+        }
+        Paged<T> paged = QueryReader.query(q, pager, entityManager, entityClass, Fetch.Plan.none());
+        PersistenceUnitUtil util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        QueryCache.depends(Metadata.of(entityManager), entityClass, Stream.concat(
+                bound.getTemplate().getPaths().stream()
+                , pager.getSorting().stream().map(Sortable::getName)).collect(Collectors.toList()));
+        cache(cache, key, new QueryCache.Entry(paged.getPage().stream()
+                .map(util::getIdentifier)
+                .collect(Collectors.toList()), paged.getPager()), generation);
+        return paged;
+    }
+
+    /**
+     * Find the paths of the projection for each entity matching the query as maps instead of managed entities
+     */
+    public static <T> Paged<Map<String, Object>> findAll(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Paginate pager
+            , Projection projection) {
+        return QueryReader.project(q, projection, pager, entityManager, entityClass);
+    }
+
+    public static <T> Paged<Map<String, Object>> findAll(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Projection projection) {
+        return findAll(entityManager, entityClass, q, Pager.of(), projection);
+    }
+
     public static <T> Paged<T> findAll(EntityManager entityManager
             , Class<T> entityClass
             , String q
@@ -82,6 +250,71 @@ public class DataStore {
         return list(entityManager, entityClass, Fetch.Plan.none());
     }
 
+    /**
+     * Group the entities matching the query and compute the aggregates of each group in the database
+     */
+    public static <T> List<Aggregation.Row> aggregate(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Aggregation aggregation) {
+        return QueryReader.aggregate(q, aggregation, entityManager, entityClass);
+    }
+
+    public static <T> List<Aggregation.Row> aggregate(EntityManager entityManager
+            , Class<T> entityClass
+            , Aggregation aggregation) {
+        return aggregate(entityManager, entityClass, "", aggregation);
+    }
+
+    /**
+     * @param rowClass Constructed with the group by values followed by the aggregates
+     */
+    public static <T, R> List<R> aggregate(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Aggregation aggregation
+            , Class<R> rowClass) {
+        return QueryReader.aggregate(q, aggregation, rowClass, entityManager, entityClass);
+    }
+
+    /**
+     * Stream every entity matching the query in chunks of fetchSize, ordered by the sorting and then the id.
+     * Chunks are read by keyset paging, so the sorting follows the rules of {@link Pager#keyset()}.
+     * Consumed entities are detached, close the stream when it isn't read to the end.
+     */
+    public static <T> Stream<T> stream(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , List<Sortable> sorting
+            , int fetchSize) {
+        return QueryReader.stream(q, sorting, fetchSize, entityManager, entityClass);
+    }
+
+    public static <T> Stream<T> stream(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , int fetchSize) {
+        return stream(entityManager, entityClass, q, new ArrayList<>(), fetchSize);
+    }
+
+    public static <T> Stream<T> stream(EntityManager entityManager, Class<T> entityClass, String q) {
+        return stream(entityManager, entityClass, q, new ArrayList<>(), Pager.of().getSize());
+    }
+
+    /**
+     * Compile the query for its shape, the prepared query runs any query of the same shape with its values bound
+     */
+    public static <T> QueryReader.Prepared<T> prepare(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , List<Sortable> sorting) {
+        return QueryReader.prepare(q, sorting, entityManager, entityClass);
+    }
+
+    public static <T> QueryReader.Prepared<T> prepare(EntityManager entityManager, Class<T> entityClass, String q) {
+        return prepare(entityManager, entityClass, q, new ArrayList<>());
+    }
+
     public static <T> Optional<T> findOne(EntityManager entityManager
             , Class<T> entityClass
             , String q
@@ -135,6 +368,7 @@ public class DataStore {
                 entityManager.persist(t);
                 trx.commit();
             }
+            evict(entityManager, trx, t);
 
             return fetchPlan.isEmpty() ? t
                     : (T) get(entityManager
@@ -151,8 +385,140 @@ public class DataStore {
         return save(entityManager, t, Fetch.Plan.none());
     }
 
+    /**
+     * Persist many entities in one transaction, flushing and clearing the persistence context after every
+     * batch so memory stays bounded. Set the provider's JDBC batch size (hibernate.jdbc.batch_size)
+     * to the batch size so each flush is sent as a single JDBC batch.
+     * Without an active transaction this call persists with an entity manager and transaction of its own,
+     * so the given entity manager is left as it was. It can then also commit every Batch.commitEvery entities,
+     * the committed count is reported to Batch.onCommit so a failed run can continue with Batch.resumeAt.
+     * Within the caller's transaction only the saved entities and the new entities persist cascades to from them
+     * are detached from the given entity manager after each batch, its other entities stay managed.
+     * Either way the saved entities are detached once this returns.
+     * @return The number of entities persisted by this call
+     */
+    public static <T> long saveAll(EntityManager entityManager, Iterable<T> entities, Batch batch) {
+        EntityTransaction trx = tryTransaction(entityManager);
+        if (trx == null || trx.isActive())
+            return saveAll(entityManager, trx, entities, batch, false);
+        EntityManager own = entityManager.getEntityManagerFactory().createEntityManager();
+        try {
+            return saveAll(own, own.getTransaction(), entities, batch, true);
+        } finally {
+            own.close();
+        }
+    }
+
+    private static <T> long saveAll(EntityManager entityManager
+            , EntityTransaction trx
+            , Iterable<T> entities
+            , Batch batch
+            , boolean owner) {
+        long count = 0;
+        long committed = batch.resumeAt;
+        Set<Class<?>> saved = new HashSet<>();
+        Set<Object> chunk = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            if (owner)
+                trx.begin();
+            long skip = batch.resumeAt;
+            for (T t : entities) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                // an owned entity manager is cleared, the caller's only lets go of what this call made managed
+                if (!owner)
+                    cascaded(entityManager, t, chunk);
+                entityManager.persist(t);
+                saved.add(t.getClass());
+                count++;
+                if (count % batch.size == 0)
+                    release(entityManager, chunk, owner);
+                if (owner && batch.commitSize > 0 && count % batch.commitSize == 0) {
+                    release(entityManager, chunk, true);
+                    trx.commit();
+                    committed = batch.resumeAt + count;
+                    batch.onCommit.accept(committed);
+                    trx.begin();
+                }
+            }
+            release(entityManager, chunk, owner);
+            if (owner) {
+                trx.commit();
+                if (batch.resumeAt + count > committed)
+                    batch.onCommit.accept(batch.resumeAt + count);
+            }
+        } catch(Exception x) {
+            if (Objects.nonNull(trx) && trx.isActive()) trx.rollback();
+            throw x;
+        } finally {
+            saved.forEach(it -> evict(trx, it));
+        }
+        return count;
+    }
+
+    // write a chunk and let go of it, the caller's other entities stay managed when saveAll joined its transaction
+    private static void release(EntityManager entityManager, Set<Object> chunk, boolean owner) {
+        entityManager.flush();
+        if (owner)
+            entityManager.clear();
+        else
+            chunk.forEach(entityManager::detach);
+        chunk.clear();
+    }
+
+    // collect the entity and the new entities persist cascades to from it, the ones persisting it makes managed
+    private static void cascaded(EntityManager entityManager, Object entity, Set<Object> found) {
+        if (entity == null || entityManager.contains(entity) || !found.add(entity))
+            return;
+        PersistenceUnitUtil util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (String name : Metadata.of(entityManager).entity(entity.getClass()).getPersistCascades()) {
+            if (!util.isLoaded(entity, name))
+                continue;
+            Object value;
+            try {
+                value = Reflect.getFieldValue(entity, name);
+            } catch (ReflectiveOperationException e) {
+                throw new QueryReader.AccessException(entity.getClass(), name, e);
+            }
+            if (value instanceof Map)
+                value = ((Map<?, ?>) value).values();
+            if (value instanceof Collection)
+                ((Collection<?>) value).forEach(it -> cascaded(entityManager, it, found));
+            else
+                cascaded(entityManager, value, found);
+        }
+    }
+
+    public static <T> long saveAll(EntityManager entityManager, Iterable<T> entities, int batchSize) {
+        return saveAll(entityManager, entities, Batch.of(batchSize));
+    }
+
+    public static <T> long saveAll(EntityManager entityManager, Iterable<T> entities) {
+        return saveAll(entityManager, entities, Batch.of());
+    }
+
     public static <ID, T> Optional<T> get(EntityManager entityManager, Class<T> entityClass, ID id, Fetch.Plan fetchPlan) {
-//        entityManager.find(entityClass, id);
+        // without a fetch plan the entity manager finds the entity itself, from its persistence context when it can
+        EntityType<?> model = Metadata.of(entityManager).entity(entityClass).getModel();
+        if (fetchPlan.isEmpty() && model.hasSingleIdAttribute() && Objects.nonNull(model.getIdType())
+                && model.getIdType().getJavaType().isInstance(id)) {
+            // a transaction or a session must see its own changes and get the entities it manages
+            if (!entities.isEnabled() || inTransaction(entityManager) || Objects.nonNull(UnitOfWork.current()))
+                return Optional.ofNullable(entityManager.find(entityClass, id));
+            settle();
+            long generation = generation();
+            List<Object> key = Lists.of(entityClass, id);
+            Snapshot snapshot = (Snapshot) entities.get(key);
+            if (snapshot == null) {
+                snapshot = Snapshot.of(snapshot(entityManager, entityClass, id));
+                if (snapshot == null)
+                    return Optional.empty();
+                cache(entities, key, snapshot, generation);
+            }
+            return Optional.of(entityClass.cast(snapshot.copy(entityManager.getEntityManagerFactory())));
+        }
         EntityTransaction trx = tryTransaction(entityManager);
         try {
             String query = String.format(":%s", id);
@@ -161,15 +527,10 @@ public class DataStore {
                     entityClass.isAnnotationPresent(IdClass.class)) {
                 Q<?> q = Q.of(id.getClass());
 
-                String idRef = "";
-                if (id.getClass().isAnnotationPresent(Embeddable.class)) {
-                    Optional<Field> idField =
-                            Reflect.getAllFields(entityClass).stream()
-                                    .filter(it -> it.isAnnotationPresent(EmbeddedId.class))
-                                    .findFirst();
-                    idRef = idField.isPresent() ? String.format("%s.", idField.get().getName()) : "";
-                }
-                String finalIdRef = idRef;
+                // an @EmbeddedId is the single id attribute, its fields are queried through it
+                String finalIdRef = id.getClass().isAnnotationPresent(Embeddable.class)
+                        ? String.format("%s.", Metadata.of(entityManager).idNames(entityClass)[0])
+                        : "";
                 Reflect.getAllFields(id.getClass()).forEach(it -> {
                     try {
                         q.eq(String.format("%s%s", finalIdRef, it.getName()), Reflect.getFieldValue(id, it));
@@ -195,10 +556,49 @@ public class DataStore {
         }
     }
 
+    // find the entity with an entity manager of its own, so the cached entity is detached from every other one
+    private static <ID, T> T snapshot(EntityManager entityManager, Class<T> entityClass, ID id) {
+        EntityManager loader = entityManager.getEntityManagerFactory().createEntityManager();
+        try {
+            return loader.find(entityClass, id);
+        } finally {
+            loader.close();
+        }
+    }
+
     public static <ID, T> Optional<T> get(EntityManager entityManager, Class<T> entityClass, ID id) {
         return get(entityManager, entityClass, id, Fetch.Plan.none());
     }
 
+    /**
+     * Get the entities of the ids with chunked IN queries and fetch the plan once for all of them
+     * @return The entities in the order of the ids, ids which weren't found are reported as missing
+     */
+    public static <ID, T> Retrieved<ID, T> getAll(EntityManager entityManager
+            , Class<T> entityClass
+            , Collection<ID> ids
+            , Fetch.Plan fetchPlan) {
+        EntityTransaction trx = tryTransaction(entityManager);
+        try {
+            Retrieved<ID, T> retrieved;
+            if (trx == null || trx.isActive())
+                retrieved = QueryReader.getAll(ids, entityManager, entityClass, fetchPlan);
+            else {
+                trx.begin();
+                retrieved = QueryReader.getAll(ids, entityManager, entityClass, fetchPlan);
+                trx.commit();
+            }
+            return retrieved;
+        } catch (Exception x) {
+            if (Objects.nonNull(trx)) trx.rollback();
+            throw x;
+        }
+    }
+
+    public static <ID, T> Retrieved<ID, T> getAll(EntityManager entityManager, Class<T> entityClass, Collection<ID> ids) {
+        return getAll(entityManager, entityClass, ids, Fetch.Plan.none());
+    }
+
     @SuppressWarnings("unchecked")
     public static <T> T update(EntityManager entityManager, T t, Fetch.Plan fetchPlan) {
         EntityTransaction trx = tryTransaction(entityManager);
@@ -206,13 +606,15 @@ public class DataStore {
             T entity;
             if (trx == null || trx.isActive()) {
                 entity = entityManager.merge(t);
-                entityManager.flush();
+                if (!UnitOfWork.isBatched(entityManager))
+                    entityManager.flush();
             } else {
                 trx.begin();
                 entity = entityManager.merge(t);
                 entityManager.flush();
                 trx.commit();
             }
+            evict(entityManager, trx, entity);
             entity = fetchPlan.isEmpty() ? entity
                     : (T) get(entityManager
                     , entity.getClass()
@@ -242,6 +644,7 @@ public class DataStore {
                 entityManager.clear();
                 trx.commit();
             }
+            evict(entityManager, trx, t);
             return t;
         } catch(Exception x) {
             if (Objects.nonNull(trx)) trx.rollback();
@@ -270,6 +673,7 @@ public class DataStore {
                 entityManager.clear();
                 trx.commit();
             }
+            evict(trx, entityClass);
         } catch(Exception x) {
             if (Objects.nonNull(trx)) trx.rollback();
             throw x;
@@ -302,6 +706,7 @@ public class DataStore {
                 entityManager.clear();
                 trx.commit();
             }
+            evict(trx, entityClass);
         } catch(Exception x) {
             if (Objects.nonNull(trx)) trx.rollback();
             throw x;
@@ -313,6 +718,157 @@ public class DataStore {
         return deleteWhere(entityManager, entityClass, q, Pager.of(1, 100).disableCount());
     }
 
+    /**
+     * Delete every entity matching the query with set based CriteriaDelete statements of at most batchSize rows,
+     * without loading the entities. Entities which cascade removes, own collection rows or declare remove callbacks
+     * still need em.remove, for those the matches are loaded and removed batchSize at a time.
+     * @return The number of deleted entities
+     */
+    public static <T> int bulkDeleteWhere(EntityManager entityManager, Class<T> entityClass, String q, int batchSize) {
+        int count;
+        EntityTransaction trx = tryTransaction(entityManager);
+        try {
+            if (trx == null || trx.isActive())  {
+                count = bulkDelete(entityManager, entityClass, q, batchSize);
+            } else {
+                trx.begin();
+                count = bulkDelete(entityManager, entityClass, q, batchSize);
+                trx.commit();
+            }
+            evict(trx, entityClass);
+        } catch(Exception x) {
+            if (Objects.nonNull(trx)) trx.rollback();
+            throw x;
+        }
+        return count;
+    }
+
+    public static <T> int bulkDeleteWhere(EntityManager entityManager, Class<T> entityClass, String q) {
+        return bulkDeleteWhere(entityManager, entityClass, q, QueryReader.MAX_SIZE);
+    }
+
+    public static <T> int bulkDeleteAll(EntityManager entityManager, Class<T> entityClass, int batchSize) {
+        return bulkDeleteWhere(entityManager, entityClass, "", batchSize);
+    }
+
+    public static <T> int bulkDeleteAll(EntityManager entityManager, Class<T> entityClass) {
+        return bulkDeleteWhere(entityManager, entityClass, "", QueryReader.MAX_SIZE);
+    }
+
+    private static <T> int bulkDelete(EntityManager entityManager, Class<T> entityClass, String q, int batchSize) {
+        int count = 0;
+        if (Metadata.of(entityManager).entity(entityClass).isBulkDeletable()) {
+            // managed entities may already be deleted, so flush pending changes first and drop them after
+            entityManager.flush();
+            count = QueryReader.delete(q, entityManager, entityClass, batchSize);
+        } else {
+            List<T> page;
+            do {
+                page = findAll(entityManager, entityClass, q, Pager.of(1, batchSize).disableCount(), Fetch.Plan.none())
+                        .getPage();
+                for (T t : page) {
+                    entityManager.remove(t);
+                    count++;
+                }
+                entityManager.flush();
+                entityManager.clear();
+            } while (page.size() == batchSize);
+        }
+        entityManager.clear();
+        return count;
+    }
+
+    /**
+     * Update every entity matching the query with one set based statement instead of loading and merging each one.
+     * @param assignments The attribute paths and their new values
+     * @return The number of updated entities
+     */
+    public static <T> int updateWhere(EntityManager entityManager
+            , Class<T> entityClass
+            , String q
+            , Map<String, Object> assignments) {
+        return updateWhere(entityManager, entityClass, QueryTemplate.of(entityClass, q), assignments);
+    }
+
+    static <T> int updateWhere(EntityManager entityManager
+            , Class<T> entityClass
+            , QueryTemplate.Bound bound
+            , Map<String, Object> assignments) {
+        int count;
+        EntityTransaction trx = tryTransaction(entityManager);
+        try {
+            if (trx == null || trx.isActive())  {
+                entityManager.flush();
+                count = QueryReader.update(bound, entityManager, entityClass, assignments);
+            } else {
+                trx.begin();
+                count = QueryReader.update(bound, entityManager, entityClass, assignments);
+                trx.commit();
+            }
+            // managed entities don't see the new values
+            entityManager.clear();
+            evict(trx, entityClass);
+        } catch(Exception x) {
+            if (Objects.nonNull(trx)) trx.rollback();
+            throw x;
+        }
+        return count;
+    }
+
+    public static class Batch {
+        public static final int DEFAULT_SIZE = 50;
+
+        public static Batch of(int size) {
+            return new Batch(size);
+        }
+
+        public static Batch of() {
+            return of(DEFAULT_SIZE);
+        }
+
+        private final int size;
+        private int commitSize;
+        private long resumeAt;
+        private LongConsumer onCommit = committed -> {};
+
+        protected Batch(int size) {
+            if (size < 1)
+                throw new IllegalArgumentException("batch size must be positive");
+            this.size = size;
+        }
+
+        public Batch commitEvery(int commitSize) {
+            this.commitSize = commitSize;
+            return this;
+        }
+
+        /**
+         * Skip the entities which were committed by a previous run
+         * @param committed The last count reported to onCommit
+         */
+        public Batch resumeAt(long committed) {
+            this.resumeAt = committed;
+            return this;
+        }
+
+        public Batch onCommit(LongConsumer onCommit) {
+            this.onCommit = onCommit;
+            return this;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getCommitSize() {
+            return commitSize;
+        }
+
+        public long getResumeAt() {
+            return resumeAt;
+        }
+    }
+
     public static class Q<T> {
         public static <T> Q<T> of (Class<T> entityClass) {
             return new Q<>(entityClass);
@@ -324,7 +880,9 @@ public class DataStore {
             }
         }
 
+        // the string form is kept for logging and urls, queries are built from the expression tree
         private final QStr q = QStr.of();
+        private final QueryTemplate.Builder where = new QueryTemplate.Builder();
         private final Class<T> entityClass;
 
         protected Q(Class<T> entityClass) {
@@ -353,90 +911,106 @@ public class DataStore {
 
         public Q<T> eq(String name, Object value, Opt... opts) {
             q.eq(name, value, opts);
-            return this;
+            return add(name
+                    , value == null ? QueryReader.Expression.Operator.isnull : QueryReader.Expression.Operator.eq
+                    , value
+                    , opts);
         }
 
         public Q<T> gt(String name, Object value, Opt... opts) {
             q.gt(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.gt, value, opts);
         }
 
         public Q<T> gte(String name, Object value, Opt... opts) {
             q.gte(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.gte, value, opts);
         }
 
         public Q<T> lt(String name, Object value, Opt... opts) {
             q.lt(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.lt, value, opts);
         }
 
         public Q<T> lte(String name, Object value, Opt... opts) {
             q.lte(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.lte, value, opts);
         }
 
         public Q<T> isNull(String name) {
             q.isNull(name);
-            return this;
+            return add(name, QueryReader.Expression.Operator.isnull, null);
         }
 
         public Q<T> isNotNull(String name) {
             q.isNotNull(name);
-            return this;
+            return add(name, QueryReader.Expression.Operator.isnull, null, Opt.not);
         }
 
         public Q<T> contains(String name, String value, Opt... opts) {
             q.contains(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.contains, value, opts);
         }
 
         public Q<T> iContains(String name, String value, Opt... opts) {
             q.iContains(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.icontains, value, opts);
         }
 
         public Q<T> startsWith(String name, String value, Opt... opts) {
             q.startsWith(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.startswith, value, opts);
         }
 
         public Q<T> iStartsWith(String name, String value, Opt... opts) {
             q.iStartsWith(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.istartswith, value, opts);
         }
 
         public Q<T> endsWith(String name, String value, Opt... opts) {
             q.endsWith(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.endswith, value, opts);
         }
 
         public Q<T> iEndsWith(String name, String value, Opt... opts) {
             q.iEndsWith(name, value, opts);
-            return this;
+            return add(name, QueryReader.Expression.Operator.iendswith, value, opts);
         }
 
         public Q<T> or() {
             q.or();
+            where.or();
             return this;
         }
 
         public Q<T> endOr() {
             q.endOr();
+            where.endOr();
             return this;
         }
 
         public Q<T> group() {
             q.group();
+            where.group();
             return this;
         }
 
         public Q<T> endGroup() {
             q.endGroup();
+            where.endGroup();
             return this;
         }
 
-        public Paged<T> find(EntityManager em, Fetch.Plan fetchPlan) {
+        private Q<T> add(String name, QueryReader.Expression.Operator operator, Object value, Opt... opts) {
+            where.add(new QueryReader.Expression<>(name, operator, value, opts));
+            return this;
+        }
+
+        private QueryTemplate.Bound bound() {
+            return QueryTemplate.of(entityClass, q.toString(), where);
+        }
+
+        private Pager pager() {
             Pager pager = Pager.of();
             if (Objects.nonNull(q.page))
                 pager.setPage(q.page);
@@ -446,9 +1020,12 @@ public class DataStore {
 
             if (Objects.nonNull(q.order) && q.order.length > 0)
                 pager.withSorting(q.order);
+            return pager;
+        }
 
-            return QueryReader.query(q.toString()
-                    , pager
+        public Paged<T> find(EntityManager em, Fetch.Plan fetchPlan) {
+            return QueryReader.query(bound()
+                    , pager()
                     , em
                     , entityClass
                     , fetchPlan);
@@ -457,19 +1034,43 @@ public class DataStore {
             return find(em, Fetch.Plan.none());
         }
 
+        public Paged<Map<String, Object>> find(EntityManager em, Projection projection) {
+            return QueryReader.project(bound(), projection, pager(), em, entityClass);
+        }
+        public Paged<Map<String, Object>> select(EntityManager em, String... paths) {
+            return find(em, Projection.of(paths));
+        }
+
         public Optional<T> findOne(EntityManager em, Fetch.Plan fetchPlan) {
-            return DataStore.findOne(em, entityClass, q.toString(), Pager.of().withSorting(q.order), fetchPlan);
+            List<T> page = QueryReader.query(bound()
+                    , Pager.of().withSorting(q.order).disableCount()
+                    , em
+                    , entityClass
+                    , fetchPlan).getPage();
+            return page.isEmpty() ? Optional.empty() : Optional.of(page.get(0));
         }
         public Optional<T> findOne(EntityManager em) {
             return findOne(em, Fetch.Plan.none());
         }
 
+        public List<Aggregation.Row> aggregate(EntityManager em, Aggregation aggregation) {
+            return QueryReader.aggregate(bound(), aggregation, em, entityClass);
+        }
+
+        public <R> List<R> aggregate(EntityManager em, Aggregation aggregation, Class<R> rowClass) {
+            return QueryReader.aggregate(bound(), aggregation, rowClass, em, entityClass);
+        }
+
+        public int update(EntityManager em, Map<String, Object> assignments) {
+            return DataStore.updateWhere(em, entityClass, bound(), assignments);
+        }
+
         public long count(EntityManager em) {
-            return DataStore.count(em, entityClass, q.toString());
+            return QueryReader.count(bound(), em, entityClass);
         }
 
         public boolean exists(EntityManager em) {
-            return DataStore.exists(em, entityClass, q.toString());
+            return QueryReader.exists(bound(), em, entityClass);
         }
 
         @Override
@@ -107,12 +107,22 @@ public class Fetch {
 
         private final String[] joinPaths;
         private final String[] queryPaths;
+        private boolean batch;
+        private boolean window;
+        private boolean parallel;
+        private boolean graph;
+        private String graphName;
 
         protected Plan(Fetcher fetcher) {
             this.joinMap = fetcher.joinMap;
             this.queryMap = fetcher.queryMap;
             this.joinPaths = mapPaths(joinMap);
             this.queryPaths = mapPaths(queryMap);
+            this.batch = fetcher.batch;
+            this.window = fetcher.window;
+            this.parallel = fetcher.parallel;
+            this.graph = fetcher.graph;
+            this.graphName = fetcher.graphName;
         }
 
         protected Plan() {
@@ -134,6 +144,53 @@ public class Fetch {
             return !queryMap.isEmpty();
         }
 
+        public boolean isBatched() {
+            return batch;
+        }
+
+        public Plan batched() {
+            this.batch = true;
+            return this;
+        }
+
+        public boolean isWindowed() {
+            return window;
+        }
+
+        public Plan windowed() {
+            this.batch = true;
+            this.window = true;
+            return this;
+        }
+
+        public boolean isParallel() {
+            return parallel;
+        }
+
+        public Plan parallel() {
+            this.parallel = true;
+            return this;
+        }
+
+        public boolean isGraph() {
+            return graph;
+        }
+
+        public String getGraphName() {
+            return graphName;
+        }
+
+        public Plan graph() {
+            this.graph = true;
+            return this;
+        }
+
+        public Plan graph(String name) {
+            this.graph = true;
+            this.graphName = name;
+            return this;
+        }
+
         public List<Fetch> joins(String path) {
             return joinMap.get(path);
         }
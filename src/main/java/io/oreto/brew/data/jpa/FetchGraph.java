@@ -0,0 +1,130 @@
+package io.oreto.brew.data.jpa;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.Subgraph;
+import javax.persistence.metamodel.Attribute;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The part of a fetch plan the provider loads with the entities through an entity graph, passed as a load graph hint.
+ * Sliced [offset:limit] collections, element collections, dotted names and a second collection can't be expressed
+ * by the graph and remain in the plan to be fetched the usual way. A named graph is applied as it is
+ * and the whole plan remains, what the graph already loaded is skipped by the plan.
+ */
+public class FetchGraph<T> {
+    public static final String LOAD_GRAPH = "javax.persistence.loadgraph";
+
+    @SuppressWarnings("unchecked")
+    static <T> FetchGraph<T> of(Fetch.Plan plan, EntityManager em, Class<T> entityClass) {
+        if (plan.getGraphName() != null)
+            return new FetchGraph<>((EntityGraph<T>) em.getEntityGraph(plan.getGraphName()), plan, true, false);
+
+        EntityGraph<T> graph = em.createEntityGraph(entityClass);
+        Metadata metadata = Metadata.of(em);
+        Fetcher remaining = new Fetcher();
+        remaining.batch = plan.isBatched();
+        remaining.window = plan.isWindowed();
+        remaining.parallel = plan.isParallel();
+
+        Map<String, Object> nodes = new HashMap<>();
+        Map<String, Class<?>> types = new HashMap<>();
+        nodes.put("", graph);
+        types.put("", entityClass);
+        boolean collection = false;
+        boolean empty = true;
+
+        for (String path : plan.getJoinPaths()) {
+            for (Fetch fetch : plan.joins(path)) {
+                if (add(nodes, types, metadata, path, fetch, !collection)) {
+                    empty = false;
+                    collection = collection
+                            || metadata.entity(types.get(path)).getAttribute(fetch.getName()).isCollection();
+                    continue;
+                }
+                remaining.joinMap.put(path, fetch);
+            }
+        }
+        for (String path : plan.getQueryPaths()) {
+            for (Fetch fetch : plan.queries(path)) {
+                // a query fetch of a collection is always sliced, only a single association can be graphed
+                if (!fetch.isCollection() && add(nodes, types, metadata, path, fetch, false)) {
+                    empty = false;
+                    continue;
+                }
+                remaining.queryMap.put(path, fetch);
+            }
+        }
+        return new FetchGraph<>(graph, remaining.buildPlan(), collection, empty);
+    }
+
+    // add the fetch to the node of its path when the graph can express it
+    private static boolean add(Map<String, Object> nodes
+            , Map<String, Class<?>> types
+            , Metadata metadata
+            , String path
+            , Fetch fetch
+            , boolean allowCollection) {
+        String name = fetch.getName();
+        Object node = nodes.get(path);
+        if (node == null || name.contains("."))
+            return false;
+        Metadata.Entity entity = metadata.entity(types.get(path));
+        if (!entity.hasAttribute(name))
+            return false;
+        Attribute<?, ?> attribute = entity.getAttribute(name);
+        if (!attribute.isAssociation()
+                || attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.ELEMENT_COLLECTION
+                || (attribute.isCollection() && !allowCollection))
+            return false;
+
+        Subgraph<?> subgraph = node instanceof EntityGraph
+                ? ((EntityGraph<?>) node).addSubgraph(name)
+                : ((Subgraph<?>) node).addSubgraph(name);
+        String key = path.isEmpty() ? name : String.format("%s.%s", path, name);
+        nodes.put(key, subgraph);
+        types.put(key, entity.getAttributeClass(name));
+        return true;
+    }
+
+    private final EntityGraph<T> graph;
+    private final Fetch.Plan remaining;
+    private final boolean collection;
+    private final boolean empty;
+
+    protected FetchGraph(EntityGraph<T> graph, Fetch.Plan remaining, boolean collection, boolean empty) {
+        this.graph = graph;
+        this.remaining = remaining;
+        this.collection = collection;
+        this.empty = empty;
+    }
+
+    public EntityGraph<T> getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return The fetches the graph doesn't load
+     */
+    public Fetch.Plan getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * @return true when the graph may load a collection, so the rows of a page query can't be limited
+     */
+    public boolean hasCollection() {
+        return collection;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    <Q extends Query> Q apply(Q query) {
+        query.setHint(LOAD_GRAPH, graph);
+        return query;
+    }
+}
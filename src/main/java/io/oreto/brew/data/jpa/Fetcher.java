@@ -87,6 +87,11 @@ public class Fetcher {
     private String path = "";
     protected final MultiMap<String, Fetch> joinMap = new MultiMap<>();
     protected final MultiMap<String, Fetch> queryMap = new MultiMap<>();
+    protected boolean batch;
+    protected boolean window;
+    protected boolean parallel;
+    protected boolean graph;
+    protected String graphName;
 
     public Fetcher join(String... fields) {
         for (String name : fields) {
@@ -106,6 +111,55 @@ public class Fetcher {
         return this;
     }
 
+    /**
+     * Fetch each query path with one query for all parents instead of one query per parent.
+     */
+    public Fetcher batch() {
+        this.batch = true;
+        return this;
+    }
+
+    /**
+     * Batch fetch and slice one to many collections per parent with ROW_NUMBER() OVER (PARTITION BY ...),
+     * so the [offset:limit] of every parent is read by one statement.
+     * Falls back to the batched IN query of batch(), which reads every child of the parents and slices them
+     * in memory, when the database doesn't support window functions.
+     */
+    public Fetcher window() {
+        this.batch = true;
+        this.window = true;
+        return this;
+    }
+
+    /**
+     * Run the join queries of sibling paths at the same time, each on an entity manager of its own,
+     * and stitch the associations they load into the parents by id.
+     * The stitched associations belong to entity managers which are already closed, so read them rather than
+     * changing and flushing them.
+     */
+    public Fetcher parallel() {
+        this.parallel = true;
+        return this;
+    }
+
+    /**
+     * Load what an entity graph can express with the entities through a load graph hint,
+     * the rest of the plan is fetched the usual way.
+     */
+    public Fetcher graph() {
+        this.graph = true;
+        return this;
+    }
+
+    /**
+     * Load the entities with the named entity graph, the plan only fetches what the graph didn't load.
+     */
+    public Fetcher graph(String name) {
+        this.graph = true;
+        this.graphName = name;
+        return this;
+    }
+
     public Fetcher at(String path) {
         this.path = path;
         return this;
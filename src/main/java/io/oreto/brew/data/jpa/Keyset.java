@@ -0,0 +1,169 @@
+package io.oreto.brew.data.jpa;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import io.oreto.brew.data.Paginate;
+import io.oreto.brew.data.Sort;
+import io.oreto.brew.data.Sortable;
+import io.oreto.brew.obj.Reflect;
+import io.oreto.brew.serialize.json.JSON;
+
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.SingularAttribute;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Keyset (seek) pagination. Instead of an offset the next page starts after the sort keys and id of the
+ * last row of the previous page, which are carried between requests as an opaque continuation token.
+ * Sort keys may be null, nulls sort last, the id attributes which end the keys are never null.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class Keyset {
+
+    /**
+     * @return The pager sorting followed by any id attribute not already sorted on, which makes the order total
+     */
+    public static List<Sortable> keys(Paginate pager, String[] idNames) {
+        List<Sortable> keys = new ArrayList<>(pager.getSorting());
+        for (String id : idNames) {
+            if (keys.stream().noneMatch(it -> it.getName().equals(id)))
+                keys.add(Sort.of(id, Sort.Direction.asc.name()));
+        }
+        return keys;
+    }
+
+    /**
+     * @return Which keys are optional attributes and so may be null
+     */
+    public static boolean[] nullable(List<Sortable> keys, Metadata.Entity entity) {
+        boolean[] nullable = new boolean[keys.size()];
+        for (int i = 0; i < nullable.length; i++) {
+            String name = keys.get(i).getName();
+            if (entity.hasAttribute(name)) {
+                Attribute<?, ?> attribute = entity.getAttribute(name);
+                nullable[i] = attribute instanceof SingularAttribute
+                        && ((SingularAttribute<?, ?>) attribute).isOptional();
+            }
+        }
+        return nullable;
+    }
+
+    /**
+     * Databases disagree on where nulls sort, so a nullable key is ordered by whether it is null first,
+     * which puts nulls last in either direction and lets the seek predicate know where they are
+     */
+    public static <T> List<Order> order(CriteriaBuilder cb, Root<T> root, List<Sortable> keys, boolean[] nullable) {
+        List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Path<?> path = root.get(keys.get(i).getName());
+            if (nullable[i])
+                orders.add(cb.asc(cb.selectCase().when(cb.isNull(path), 1).otherwise(0)));
+            orders.add(keys.get(i).isAscending() ? cb.asc(path) : cb.desc(path));
+        }
+        return orders;
+    }
+
+    public static String encode(Object[] values) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(JSON.asString(values).getBytes(StandardCharsets.UTF_8));
+        } catch (JsonProcessingException e) {
+            throw new QueryReader.BadQueryException("Unable to encode keyset: " + e.getMessage());
+        }
+    }
+
+    public static <T> Object[] decode(String token, List<Sortable> keys, Root<T> root) {
+        try {
+            JsonNode node = JSON.asJson(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            if (!node.isArray() || node.size() != keys.size())
+                throw new QueryReader.BadQueryException("keyset token does not match the sorting");
+            Object[] values = new Object[keys.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = node.get(i).isNull()
+                        ? null
+                        : JSON.mapper.convertValue(node.get(i), root.get(keys.get(i).getName()).getJavaType());
+            }
+            return values;
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            throw new QueryReader.BadQueryException("Invalid keyset token: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build the seek predicate (k1, k2, ...) > (v1, v2, ...) where each key compares in its own sort direction.
+     * Row value comparison is not part of the criteria api so it is expanded to
+     * k1 > v1 or (k1 = v1 and k2 > v2) or ...
+     * Nulls sort last, so a nullable key is past a value when it is null and nothing is past a null key,
+     * which then only has to be equal, that is also null, for the keys after it to be compared.
+     */
+    public static <T> Predicate after(CriteriaBuilder cb
+            , Root<T> root
+            , List<Sortable> keys
+            , boolean[] nullable
+            , Object[] values) {
+        List<Predicate> or = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (values[i] == null)
+                continue;
+            List<Predicate> and = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                Path<?> path = root.get(keys.get(j).getName());
+                and.add(values[j] == null ? cb.isNull(path) : cb.equal(path, values[j]));
+            }
+            Path path = root.get(keys.get(i).getName());
+            Comparable value = (Comparable) values[i];
+            Predicate past = keys.get(i).isAscending() ? cb.greaterThan(path, value) : cb.lessThan(path, value);
+            and.add(nullable[i] ? cb.or(past, cb.isNull(path)) : past);
+            or.add(cb.and(and.toArray(new Predicate[0])));
+        }
+        return cb.or(or.toArray(new Predicate[0]));
+    }
+
+    /**
+     * @return The continuation token made from the key values of the last entity, or null when the page is not full
+     */
+    public static String next(List<?> page, Paginate pager, List<Sortable> keys) {
+        if (page.isEmpty() || page.size() < pager.getSize())
+            return null;
+        Object last = page.get(page.size() - 1);
+        Object[] values = new Object[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = Reflect.getFieldValue(last, keys.get(i).getName());
+            } catch (ReflectiveOperationException e) {
+                throw new QueryReader.BadQueryException("Unable to read keyset value: " + e.getMessage());
+            }
+        }
+        return encode(values);
+    }
+
+    /**
+     * @return The continuation token made from the last tuple of an id query, where the key values follow the ids
+     */
+    public static String next(List<Tuple> page, Paginate pager, int ids) {
+        return page.isEmpty() ? null : next(page, pager, ids, page.get(0).getElements().size() - ids);
+    }
+
+    /**
+     * @return The continuation token made from the last tuple, where the key values follow the ids
+     */
+    public static String next(List<Tuple> page, Paginate pager, int ids, int keys) {
+        if (page.isEmpty() || page.size() < pager.getSize())
+            return null;
+        Tuple last = page.get(page.size() - 1);
+        Object[] values = new Object[keys];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = last.get(ids + i);
+        }
+        return encode(values);
+    }
+}
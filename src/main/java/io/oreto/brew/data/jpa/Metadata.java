@@ -0,0 +1,416 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.obj.Reflect;
+import io.oreto.brew.str.Str;
+
+import javax.persistence.*;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Mapping facts about the entities of one EntityManagerFactory, such as id names, association targets,
+ * mapped by attributes and table and column names. Each fact is looked up from the metamodel
+ * and the annotations once and then read from the registry by every query.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class Metadata {
+    private static final Map<EntityManagerFactory, Metadata> registry = new ConcurrentHashMap<>();
+
+    public static Metadata of(EntityManagerFactory factory) {
+        Metadata metadata = registry.get(factory);
+        if (metadata == null) {
+            // the metamodel refers to its factory, so closed factories are dropped when a new one registers
+            registry.keySet().removeIf(it -> !it.isOpen());
+            metadata = registry.computeIfAbsent(factory, k -> new Metadata(k.getMetamodel()));
+        }
+        return metadata;
+    }
+
+    public static Metadata of(EntityManager em) {
+        return of(em.getEntityManagerFactory());
+    }
+
+    /**
+     * Drop the metadata of a factory, call it when the factory is closed
+     */
+    public static void remove(EntityManagerFactory factory) {
+        registry.remove(factory);
+    }
+
+    static boolean isRegistered(EntityManagerFactory factory) {
+        return registry.containsKey(factory);
+    }
+
+    private final Metamodel metamodel;
+    private final Map<Class<?>, Entity> entities = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Map<String, Optional<Class<?>>>> types = new ConcurrentHashMap<>();
+
+    private final Set<Class<?>> entityClasses;
+    private volatile int inLimit = QueryReader.MAX_SIZE;
+    private volatile boolean parameterized;
+
+    protected Metadata(Metamodel metamodel) {
+        this.metamodel = metamodel;
+        this.entityClasses = metamodel.getEntities().stream().map(EntityType::getJavaType)
+                .collect(Collectors.toSet());
+    }
+
+    public Entity entity(Class<?> entityClass) {
+        Entity entity = entities.get(entityClass);
+        if (entity == null) {
+            entity = new Entity(this, metamodel.entity(entityClass));
+            Entity existing = entities.putIfAbsent(entityClass, entity);
+            if (existing != null)
+                entity = existing;
+        }
+        return entity;
+    }
+
+    public String[] idNames(Class<?> entityClass) {
+        return entity(entityClass).getIdNames();
+    }
+
+    /**
+     * @return The java type at the end of a dotted attribute path, collections resolve to their element type
+     */
+    public Optional<Class<?>> type(Class<?> entityClass, String path) {
+        return types.computeIfAbsent(entityClass, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(path, k -> {
+                    Class<?> type = entityClass;
+                    for (String name : path.split("\\.")) {
+                        if (!isEntity(type))
+                            return Optional.empty();
+                        Entity entity = entity(type);
+                        if (!entity.hasAttribute(name))
+                            return Optional.empty();
+                        type = entity.getAttributeClass(name);
+                    }
+                    return Optional.of(type);
+                });
+    }
+
+    /**
+     * When a path ends with an association the id of the associated entity is implied,
+     * so a query on pet resolves to pet.id
+     * @return The id name of the associated entity or empty when the path doesn't end with an association
+     */
+    public Optional<String> associationId(Class<?> entityClass, String path) {
+        if (Str.isBlank(path)) return Optional.empty();
+        Entity entity = entity(entityClass);
+        boolean association = false;
+        for (String name : path.split("\\.")) {
+            association = entity.isAssociation(name);
+            if (association)
+                entity = entity(entity.getAttributeClass(name));
+        }
+        return association ? Optional.of(entity.getIdNames()[0]) : Optional.empty();
+    }
+
+    public boolean isEntity(Class<?> cls) {
+        return entityClasses.contains(cls);
+    }
+
+    /**
+     * Set the maximum number of ids restricted by a single query of this factory,
+     * larger id lists are split into several queries.
+     * @param limit The maximum IN list size
+     */
+    public Metadata inLimit(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("IN limit must be positive");
+        this.inLimit = limit;
+        return this;
+    }
+
+    public int getInLimit() {
+        return inLimit;
+    }
+
+    /**
+     * Pass the query values of this factory as parameters instead of inlining them as literals, so every query
+     * of the same shape renders the same statement and the provider's plan cache and the jdbc statement cache
+     * are reused
+     */
+    public Metadata parameterized(boolean parameterized) {
+        this.parameterized = parameterized;
+        return this;
+    }
+
+    public boolean isParameterized() {
+        return parameterized;
+    }
+
+    public static class ElementCollection {
+        private final String table;
+        private final String[] joinColumns;
+        private final String column;
+        private final boolean map;
+
+        ElementCollection(String table, String[] joinColumns, String column, boolean map) {
+            this.table = table;
+            this.joinColumns = joinColumns;
+            this.column = column;
+            this.map = map;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String[] getJoinColumns() {
+            return joinColumns;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public boolean isMap() {
+            return map;
+        }
+    }
+
+    public static class Entity {
+        private final Metadata metadata;
+        private final Class<?> javaType;
+        private final EntityType<?> model;
+        private final String[] idNames;
+        private final String table;
+        private final Map<String, Attribute<?, ?>> attributes = new HashMap<>();
+        private final Map<String, Class<?>> attributeClasses = new HashMap<>();
+        private final Map<String, String> mappedBy = new ConcurrentHashMap<>();
+        private final Map<String, String> columns = new ConcurrentHashMap<>();
+        private final Map<String, String> idColumns = new ConcurrentHashMap<>();
+        private final Map<String, Optional<ElementCollection>> elementCollections = new ConcurrentHashMap<>();
+        private Boolean bulkDeletable;
+        private Set<String> persistCascades;
+
+        Entity(Metadata metadata, EntityType<?> model) {
+            this.metadata = metadata;
+            this.model = model;
+            this.javaType = model.getJavaType();
+            this.idNames = idNames(model);
+            this.table = QueryReader.determineDbTableName(javaType);
+            for (Attribute<?, ?> attribute : model.getAttributes()) {
+                attributes.put(attribute.getName(), attribute);
+                attributeClasses.put(attribute.getName(), attributeClass(attribute));
+            }
+        }
+
+        private static String[] idNames(EntityType<?> model) {
+            if (model.getIdType() == null) {
+                Set<SingularAttribute> attributes = (Set) model.getIdClassAttributes();
+                if (Objects.nonNull(attributes) && attributes.size() > 0) {
+                    return attributes.stream().map(Attribute::getName).toArray(String[]::new);
+                }
+            }
+            return new String[]{ model.getId(model.getIdType().getJavaType()).getName() };
+        }
+
+        private static Class<?> attributeClass(Attribute<?, ?> attribute) {
+            return attribute.isCollection()
+                    ? ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType()
+                    : attribute.getJavaType();
+        }
+
+        public Class<?> getJavaType() {
+            return javaType;
+        }
+
+        public EntityType<?> getModel() {
+            return model;
+        }
+
+        public String[] getIdNames() {
+            return idNames;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public boolean hasAttribute(String name) {
+            return attributes.containsKey(name);
+        }
+
+        public Attribute<?, ?> getAttribute(String name) {
+            Attribute<?, ?> attribute = attributes.get(name);
+            if (attribute == null)
+                throw new IllegalArgumentException(String.format("%s has no attribute %s", javaType.getName(), name));
+            return attribute;
+        }
+
+        public boolean isAssociation(String name) {
+            return attributes.containsKey(name) && attributes.get(name).isAssociation();
+        }
+
+        /**
+         * @return The attribute type, or for a collection the element type
+         */
+        public Class<?> getAttributeClass(String name) {
+            getAttribute(name);
+            return attributeClasses.get(name);
+        }
+
+        /**
+         * Find the attribute on the other side of a bidirectional association,
+         * either declared with mappedBy or the only attribute of the target mapping back to this entity.
+         */
+        public String getMappedBy(String name) throws QueryReader.BiDirectionException {
+            String found = mappedBy.get(name);
+            if (found == null) {
+                found = findMappedBy(name);
+                mappedBy.put(name, found);
+            }
+            return found;
+        }
+
+        private String findMappedBy(String name) {
+            Attribute<?, ?> attribute = getAttribute(name);
+            Attribute.PersistentAttributeType annotationType = attribute.getPersistentAttributeType();
+            Class<?> type = getAttributeClass(name);
+            String mappedBy = Reflect.getField(javaType, name)
+                    .map(it -> {
+                        if (annotationType == Attribute.PersistentAttributeType.ONE_TO_MANY)
+                            return it.getAnnotation(OneToMany.class).mappedBy();
+                        else if (annotationType == Attribute.PersistentAttributeType.MANY_TO_MANY)
+                            return it.getAnnotation(ManyToMany.class).mappedBy();
+                        else if (annotationType == Attribute.PersistentAttributeType.ONE_TO_ONE)
+                            return it.getAnnotation(OneToOne.class).mappedBy();
+                        return null;
+                    }).orElse(null);
+
+            Attribute.PersistentAttributeType targetAnnotation = (annotationType == Attribute.PersistentAttributeType.ONE_TO_MANY
+                    ? Attribute.PersistentAttributeType.MANY_TO_ONE
+                    : annotationType);
+            if (Str.isEmpty(mappedBy)) {
+                // no mapped by so we have to try to infer the attribute
+                Entity target = metadata.entity(type);
+                for (Attribute<?, ?> attr : target.model.getAttributes()) {
+                    if (attr.isAssociation()
+                            && target.getAttributeClass(attr.getName()) == javaType
+                            && attr.getPersistentAttributeType() == targetAnnotation) {
+                        if (Str.isNotEmpty(mappedBy))
+                            throw new QueryReader.BiDirectionException(javaType, name, type, targetAnnotation.name());
+                        mappedBy = attr.getName();
+                    }
+                }
+            }
+            if (Str.isEmpty(mappedBy))
+                throw new QueryReader.BiDirectionException(javaType, name, type, targetAnnotation.name());
+            return mappedBy;
+        }
+
+        public String getColumn(String name) {
+            return columns.computeIfAbsent(name, k -> QueryReader.determineDbColName(javaType, k));
+        }
+
+        public String getIdColumn(String idName) {
+            return idColumns.computeIfAbsent(idName, k -> QueryReader.determineDbIdColName(javaType, k));
+        }
+
+        /**
+         * @return The foreign key column of an association referencing the given column of the target
+         */
+        public String getJoinColumn(String name, String referencedColumn) {
+            return columns.computeIfAbsent(String.format("%s:%s", name, referencedColumn)
+                    , k -> QueryReader.determineDbJoinColName(javaType, name, referencedColumn));
+        }
+
+        /**
+         * A set based delete removes rows without loading them, so it is only equivalent to em.remove when
+         * nothing cascades on remove, no collection or join table rows are owned by the entity
+         * and no remove callbacks or entity listeners are declared.
+         */
+        public boolean isBulkDeletable() {
+            if (bulkDeletable == null)
+                bulkDeletable = Reflect.getAllFields(javaType).stream().noneMatch(Entity::removesDependents)
+                        && !hasRemoveCallbacks(javaType);
+            return bulkDeletable;
+        }
+
+        private static boolean removesDependents(Field field) {
+            if (field.isAnnotationPresent(javax.persistence.ElementCollection.class))
+                return true;
+            if (field.isAnnotationPresent(OneToMany.class))
+                return cascadesRemove(field.getAnnotation(OneToMany.class).cascade())
+                        || field.getAnnotation(OneToMany.class).orphanRemoval();
+            if (field.isAnnotationPresent(OneToOne.class))
+                return cascadesRemove(field.getAnnotation(OneToOne.class).cascade())
+                        || field.getAnnotation(OneToOne.class).orphanRemoval();
+            if (field.isAnnotationPresent(ManyToMany.class))
+                return cascadesRemove(field.getAnnotation(ManyToMany.class).cascade())
+                        || Str.isEmpty(field.getAnnotation(ManyToMany.class).mappedBy());
+            if (field.isAnnotationPresent(ManyToOne.class))
+                return cascadesRemove(field.getAnnotation(ManyToOne.class).cascade());
+            return false;
+        }
+
+        /**
+         * @return The associations which cascade persist, so their new entities are saved along with this one
+         */
+        public Set<String> getPersistCascades() {
+            if (persistCascades == null)
+                persistCascades = Reflect.getAllFields(javaType).stream()
+                        .filter(it -> attributes.containsKey(it.getName()) && cascadesPersist(it))
+                        .map(Field::getName)
+                        .collect(Collectors.toSet());
+            return persistCascades;
+        }
+
+        private static boolean cascadesPersist(Field field) {
+            CascadeType[] cascade;
+            if (field.isAnnotationPresent(OneToMany.class))
+                cascade = field.getAnnotation(OneToMany.class).cascade();
+            else if (field.isAnnotationPresent(OneToOne.class))
+                cascade = field.getAnnotation(OneToOne.class).cascade();
+            else if (field.isAnnotationPresent(ManyToMany.class))
+                cascade = field.getAnnotation(ManyToMany.class).cascade();
+            else if (field.isAnnotationPresent(ManyToOne.class))
+                cascade = field.getAnnotation(ManyToOne.class).cascade();
+            else
+                return false;
+            return Arrays.stream(cascade).anyMatch(it -> it == CascadeType.ALL || it == CascadeType.PERSIST);
+        }
+
+        private static boolean cascadesRemove(CascadeType[] cascade) {
+            return Arrays.stream(cascade).anyMatch(it -> it == CascadeType.ALL || it == CascadeType.REMOVE);
+        }
+
+        private static boolean hasRemoveCallbacks(Class<?> cls) {
+            for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+                if (c.isAnnotationPresent(EntityListeners.class))
+                    return true;
+                if (Arrays.stream(c.getDeclaredMethods()).anyMatch(it -> it.isAnnotationPresent(PreRemove.class)
+                        || it.isAnnotationPresent(PostRemove.class)))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return The table and columns of a basic @ElementCollection mapped with a @CollectionTable
+         */
+        public Optional<ElementCollection> getElementCollection(String name) {
+            return elementCollections.computeIfAbsent(name, k -> {
+                Optional<Field> field = Reflect.getField(javaType, k);
+                if (!field.isPresent()
+                        || !field.get().isAnnotationPresent(javax.persistence.ElementCollection.class)
+                        || !field.get().isAnnotationPresent(CollectionTable.class))
+                    return Optional.empty();
+                CollectionTable collectionTable = field.get().getAnnotation(CollectionTable.class);
+                return Optional.of(new ElementCollection(collectionTable.name()
+                        , Arrays.stream(collectionTable.joinColumns()).map(JoinColumn::name).toArray(String[]::new)
+                        , QueryReader.determineDbColName(javaType, k)
+                        , Map.class.isAssignableFrom(field.get().getType())));
+            });
+        }
+    }
+}
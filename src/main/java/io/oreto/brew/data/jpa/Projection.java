@@ -0,0 +1,110 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.serialize.json.JsonRenderer;
+import io.oreto.brew.str.Str;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The attribute paths to select instead of whole entities. Each row comes back as a map of the selected values,
+ * nested the same way as the paths, where a collection becomes a list of maps. A path ending with an association
+ * selects the basic attributes of the associated entity.
+ */
+public class Projection {
+    public static Projection of(Collection<String> paths) {
+        return new Projection(paths);
+    }
+
+    public static Projection of(String... paths) {
+        return of(Arrays.asList(paths));
+    }
+
+    /**
+     * @param select A select expression as used by the json renderer, such as name address{line} orders{amount}
+     */
+    public static Projection select(String select) {
+        return of(new JsonRenderer().paths(select));
+    }
+
+    private final Set<String> paths = new LinkedHashSet<>();
+
+    protected Projection(Collection<String> paths) {
+        paths.stream().map(String::trim).forEach(this.paths::add);
+    }
+
+    public Set<String> getPaths() {
+        return paths;
+    }
+
+    public boolean isEmpty() {
+        return paths.isEmpty();
+    }
+
+    /**
+     * Split the paths into the ones a single row can select and the collections which need a query of their own
+     */
+    Resolved resolve(Metadata metadata, Class<?> entityClass) {
+        Resolved resolved = new Resolved();
+        for (String path : paths) {
+            if (Str.isEmpty(path)) {
+                resolved.basic.addAll(basics(metadata.entity(entityClass), ""));
+                continue;
+            }
+            String[] names = path.split("\\.");
+            Class<?> type = entityClass;
+            for (int i = 0; i < names.length; i++) {
+                Metadata.Entity entity = metadata.entity(type);
+                if (!entity.hasAttribute(names[i]))
+                    throw new QueryReader.BadQueryException(
+                            String.format("%s has no attribute %s", type.getSimpleName(), names[i]));
+                Attribute<?, ?> attribute = entity.getAttribute(names[i]);
+                String prefix = String.join(".", Arrays.copyOfRange(names, 0, i + 1));
+                if (attribute.isCollection()) {
+                    String rest = String.join(".", Arrays.copyOfRange(names, i + 1, names.length));
+                    resolved.collections.computeIfAbsent(prefix, k -> new Projection(new ArrayList<>()))
+                            .paths.add(rest);
+                    break;
+                } else if (attribute.isAssociation()) {
+                    type = entity.getAttributeClass(names[i]);
+                    if (i == names.length - 1)
+                        resolved.basic.addAll(basics(metadata.entity(type), prefix));
+                } else {
+                    // a basic or embedded attribute ends the path
+                    resolved.basic.add(prefix);
+                    break;
+                }
+            }
+        }
+        return resolved;
+    }
+
+    private static List<String> basics(Metadata.Entity entity, String prefix) {
+        return entity.getModel().getSingularAttributes().stream()
+                .filter(it -> !it.isAssociation())
+                .map(SingularAttribute::getName)
+                .sorted()
+                .map(it -> prefix.isEmpty() ? it : String.format("%s.%s", prefix, it))
+                .collect(Collectors.toList());
+    }
+
+    static class Resolved {
+        final Set<String> basic = new LinkedHashSet<>();
+        final Map<String, Projection> collections = new LinkedHashMap<>();
+    }
+
+    /**
+     * Put the value into the row at the dotted path, creating the maps along the way
+     */
+    @SuppressWarnings("unchecked")
+    static void put(Map<String, Object> row, String path, Object value) {
+        String[] names = path.split("\\.");
+        Map<String, Object> map = row;
+        for (int i = 0; i < names.length - 1; i++) {
+            map = (Map<String, Object>) map.computeIfAbsent(names[i], k -> new LinkedHashMap<String, Object>());
+        }
+        map.put(names[names.length - 1], value);
+    }
+}
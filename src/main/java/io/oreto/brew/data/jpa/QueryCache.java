@@ -0,0 +1,149 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.data.Paginate;
+import io.oreto.brew.map.Cache;
+import io.oreto.brew.str.Str;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the ids of findAll pages without a fetch plan, one cache per entity class, so repeated queries only
+ * read their entities back by id. Disabled by default.
+ * Once saving, updating or deleting an entity commits, it clears the cache of its class and the caches of the
+ * classes whose queries filter or sort through it, such as people queried by orders.amount.
+ */
+public class QueryCache {
+    static final char SEPARATOR = '\u001F';
+
+    private static final Map<Class<?>, Cache<String, Entry>> caches = new ConcurrentHashMap<>();
+    // the classes whose cached queries go through an entity class
+    private static final Map<Class<?>, Set<Class<?>>> dependents = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+    private static volatile int maxSize = Cache.DEFAULT_MAX_SIZE;
+    private static volatile Duration ttl = Duration.ofMinutes(1);
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+        caches.clear();
+        dependents.clear();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the size of the caches created from now on
+     */
+    public static void maxSize(int maxSize) {
+        QueryCache.maxSize = maxSize;
+    }
+
+    /**
+     * Set the ttl of the caches created from now on, configure the cache of one entity class with of(entityClass)
+     */
+    public static void ttl(Duration ttl) {
+        QueryCache.ttl = ttl;
+    }
+
+    /**
+     * @return The cache of the entity class, its size, ttl and statistics can be changed and read on it
+     */
+    public static Cache<String, Entry> of(Class<?> entityClass) {
+        return caches.computeIfAbsent(entityClass, k -> Cache.<String, Entry>of(maxSize).ttl(ttl));
+    }
+
+    public static Map<Class<?>, Cache<String, Entry>> caches() {
+        return Collections.unmodifiableMap(caches);
+    }
+
+    /**
+     * Clear the caches of the entity class, its super classes and sub classes,
+     * and of the classes with queries going through any of them
+     */
+    public static void invalidate(Class<?> entityClass) {
+        Set<Class<?>> cleared = new HashSet<>();
+        cleared.add(entityClass);
+        dependents.forEach((k, v) -> {
+            if (related(k, entityClass))
+                cleared.addAll(v);
+        });
+        caches.forEach((k, v) -> {
+            if (cleared.stream().anyMatch(it -> related(k, it)))
+                v.clear();
+        });
+    }
+
+    private static boolean related(Class<?> c1, Class<?> c2) {
+        return c1.isAssignableFrom(c2) || c2.isAssignableFrom(c1);
+    }
+
+    /**
+     * Remember the entities the paths of a query on the entity class go through, so writes to them clear its cache
+     */
+    static void depends(Metadata metadata, Class<?> entityClass, Iterable<String> paths) {
+        for (String path : paths) {
+            Class<?> type = entityClass;
+            for (String name : path.split("\\.")) {
+                if (!metadata.isEntity(type) || !metadata.entity(type).hasAttribute(name))
+                    break;
+                type = metadata.entity(type).getAttributeClass(name);
+                if (metadata.isEntity(type) && type != entityClass)
+                    dependents.computeIfAbsent(type, k -> ConcurrentHashMap.newKeySet()).add(entityClass);
+            }
+        }
+    }
+
+    static String key(QueryTemplate.Bound bound, Paginate pager) {
+        return Str.of(bound.getKey())
+                .add(SEPARATOR).add(pager.getPage())
+                .add(SEPARATOR).add(pager.getOffset())
+                .add(SEPARATOR).add(pager.getSize())
+                .add(SEPARATOR).add(pager.getSorting().stream().map(Object::toString).collect(Collectors.joining(",")))
+                .add(SEPARATOR).add(String.valueOf(pager.isKeyset())).add(String.valueOf(pager.getAfter()))
+                .add(SEPARATOR).add(pager.isCountEnabled() ? pager.getCountStrategy().name() : "")
+                .toString();
+    }
+
+    /**
+     * The ids of a page and what the query reported to the pager
+     */
+    public static class Entry {
+        private final List<Object> ids;
+        private final Long count;
+        private final Boolean more;
+        private final String next;
+        private final String countedBy;
+
+        Entry(List<Object> ids, Paginate pager) {
+            this.ids = ids;
+            this.count = pager.getCount();
+            this.more = pager.getMore();
+            this.next = pager.getNext();
+            this.countedBy = pager.getCountedBy();
+        }
+
+        public List<Object> getIds() {
+            return ids;
+        }
+
+        void apply(Paginate pager) {
+            if (count != null)
+                pager.setCount(count);
+            pager.setMore(more);
+            pager.setNext(next);
+            pager.setCountedBy(countedBy);
+        }
+    }
+}
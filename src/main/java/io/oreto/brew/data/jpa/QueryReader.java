@@ -1,9 +1,11 @@
 package io.oreto.brew.data.jpa;
 
 import io.oreto.brew.collections.Lists;
+import io.oreto.brew.data.CountStrategy;
 import io.oreto.brew.data.Paged;
 import io.oreto.brew.data.Pager;
 import io.oreto.brew.data.Paginate;
+import io.oreto.brew.data.Retrieved;
 import io.oreto.brew.data.Sortable;
 import io.oreto.brew.obj.Reflect;
 import io.oreto.brew.obj.Safe;
@@ -17,19 +19,26 @@ import javax.persistence.metamodel.EntityType;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @SuppressWarnings({"unchecked", "rawtypes"})
 public class QueryReader {
     public static final int MAX_SIZE = 999;
-    static final char QUOTE = '"';
 
     public static String[] idNames(Root root) {
         EntityType entityType = root.getModel();
@@ -43,24 +52,21 @@ public class QueryReader {
     }
 
     public static Selection[] idSelections(Root root) {
-        return Arrays.stream(idNames(root)).map((java.util.function.Function<String, Path>) root::get)
+        return idSelections(root, idNames(root));
+    }
+
+    public static Selection[] idSelections(Root root, String[] idNames) {
+        return Arrays.stream(idNames).map((java.util.function.Function<String, Path>) root::get)
                 .toArray(Selection[]::new);
     }
 
     public static class QueryState<T> {
-        int i = 0;
-        int depth = 0;
-        int length;
         String q;
-        boolean quoted = false;
-        boolean escaped = false;
-        boolean collecting = false;
-        List<Object> list;
-        Str str;
-        String tmp;
         Map<String, From> joins = new HashMap<>();
+        Metadata metadata;
         CriteriaBuilder cb;
         Root<T> root;
+        List<Binding> bindings;
 
         public static <T> void buildFetchJoins(String fetch, Root<T> root, Map<String, From> joins) {
             if (Objects.nonNull(fetch) && !fetch.isEmpty()) {
@@ -81,79 +87,82 @@ public class QueryReader {
             }
         }
 
-        QueryState(String q, CriteriaBuilder cb, Root<T> root, String fetch) {
+        QueryState(String q, Metadata metadata, CriteriaBuilder cb, Root<T> root, String fetch) {
             this.q = q;
+            this.metadata = metadata;
             this.cb = cb;
             this.root = root;
-            length = q == null ? 0 : q.length();
-            str = Str.empty();
+            if (metadata.isParameterized())
+                parameterize();
 
             buildFetchJoins(fetch, root, joins);
         }
 
-        QueryState(String q, CriteriaBuilder cb, Root<T> root) {
-            this(q, cb, root, null);
+        QueryState(String q, Metadata metadata, CriteriaBuilder cb, Root<T> root) {
+            this(q, metadata, cb, root, null);
         }
 
-        Stack<String> logical = new Stack<>();
-        Stack<String> groups = new Stack<>();
-
-        String getString() {
-            String s = str.trim().toString();
-            str.delete();
-            return s;
-        }
-
-        QueryState<T> increment() {
-            i++;
-            depth++;
+        // bind values as parameters instead of inlining them
+        QueryState<T> parameterize() {
+            if (bindings == null)
+                bindings = new ArrayList<>();
             return this;
         }
+    }
 
-        void toggleQuote() {
-            quoted = !quoted;
+    /**
+     * A query value passed as a parameter when the query runs. The value is computed from the expression,
+     * or from a literal of another query with the same shape.
+     */
+    static class Binding {
+        final ParameterExpression parameter;
+        final Expression<?> expression;
+        final Path<?> path;
+        final java.util.function.Function<Expression<?>, Object> value;
+        int slot = -1;
+
+        Binding(ParameterExpression parameter
+                , Expression<?> expression
+                , Path<?> path
+                , java.util.function.Function<Expression<?>, Object> value) {
+            this.parameter = parameter;
+            this.expression = expression;
+            this.path = path;
+            this.value = value;
         }
 
-        void escape() { escaped = true; }
-        void unescape() { escaped = false; }
-        void open() { groups.push("("); }
-        void close() {
-            if (groups.isEmpty())
-                throw new BadQueryException("no matching opening paren '('", i);
-            groups.pop();
-        }
-        boolean isOpen() {
-            return groups.size() > 0;
-        }
-        void openCollection() {
-            this.collecting = true;
-            this.list = new ArrayList<>();
-            this.tmp = getString();
-        }
-        void closeCollection() {
-            this.collect();
-            this.collecting = false;
-        }
-        void collect() {
-            if (str.trim().isInt()) {
-                list.add(str.toInteger().orElse(0));
-            } else if (str.isNum()) {
-                list.add(str.toDouble().orElse(0.0));
-            } else {
-                if (str.startsWith("'") && str.endsWith("'"))
-                    str.trim("'");
-                list.add(str.toString());
-            }
-            str.delete();
+        Object value(Object[] literals) {
+            if (slot < 0 || Objects.isNull(literals))
+                return value.apply(expression);
+            Expression bound = expression.copy();
+            bound.bind(literals[slot]);
+            bound.setValue(path);
+            return value.apply(bound);
         }
+    }
+
+    private static <Q extends Query> Q bind(Q query, List<Binding> bindings, Object[] literals) {
+        if (Objects.nonNull(bindings))
+            for (Binding binding : bindings)
+                query.setParameter(binding.parameter, binding.value(literals));
+        return query;
+    }
 
-        boolean isLast() { return i == length - 1; }
+    private static <Q extends Query> Q bind(Q query, Predicates predicates) {
+        return bind(query, predicates.bindings, null);
     }
 
     public static class Predicates {
         public Predicate where;
         public boolean having;
+        // the plain conditions and the aggregate conditions of the top level and
+        public Predicate rows;
+        public Predicate groups;
+        // a condition other than the top level and combines plain and aggregate conditions
+        boolean mixed;
+        boolean plain;
         public List<javax.persistence.criteria.Expression<?>> grouping = new ArrayList<>();
+        List<Binding> bindings;
 
         public javax.persistence.criteria.Expression<?>[] groupBy() {
             return grouping.toArray(new javax.persistence.criteria.Expression[0]);
@@ -161,142 +170,150 @@ public class QueryReader {
     }
 
     public static <T> Predicates parse(QueryState<T> state) {
-        Predicates predicates = new Predicates();
-        if (state.q == null || state.q.trim().equals("")) {
-            return predicates;
-        }
-
-        for (; state.i < state.length; state.i++) {
-            char c = state.q.charAt(state.i);
-
-            if (c == QUOTE) {
-                if (state.escaped) {
-                    state.str.add(c);
-                    state.unescape();
-                } else {
-                    state.toggleQuote();
-                }
-                checkFinal(state, predicates);
-                continue;
-            } else if (state.quoted) {
-                if (c == '\\' && !state.escaped) {
-                    state.escape();
-                } else {
-                    state.str.add(c);
-                }
-                continue;
-            } else if (c == '\\') {
-                state.escape();
-                continue;
-            } else if (state.collecting) {
-                if (c == ']') {
-                    state.closeCollection();
-                    checkFinal(state, predicates);
-                } else {
-                    if (c == ',')
-                        state.collect();
-                    else
-                        state.str.add(c);
-                }
-                continue;
-            } else if (c == '[') {
-               state.openCollection();
-               continue;
-            }
-
-            switch (c) {
-                case '(':
-                    state.open();
-                    if (state.logical.size() > 0 && Logical.isValid(state.logical.peek())) {
-                        Predicates newPredicates = parse(state.increment());
-
-                        if (predicates.where == null)
-                            predicates.where = newPredicates.where;
-                        else
-                            predicates.where = Logical.apply(state.logical.pop()
-                                    , state.cb
-                                    , predicates.where
-                                    , newPredicates.where);
-                        predicates.grouping.addAll(newPredicates.grouping);
-                        if (newPredicates.having)
-                            predicates.having = true;
-                    } else {
-                        predicates = parse(state.increment());
-                    }
-                    break;
-                case ')':
-                    state.close();
-                    if (state.depth == 0) {
-                        checkFinal(state, predicates);
-                        break;
-                    } else {
-                        state.depth--;
-                        return state.str.isEmpty()
-                                ? predicates
-                                : addExpression(state.getString(), state, predicates);
-                    }
-                case ' ':
-                    String s = state.getString();
-                    if (!s.contains(":") && Logical.isValid(s)) {
-                        state.logical.push(s);
-                    } else if (s.length() > 0) {
-                        addExpression(s, state, predicates);
-                    } else if (state.list.size() > 0) {
-                        addExpression(s, state, predicates);
-                        state.list = null;
-                    }
-                    break;
-                default:
-                    state.str.add(c);
-                    checkFinal(state, predicates);
-            }
-        }
-
-        if (state.isOpen())
-            throw new BadQueryException("no matching closing paren ')'", state.i);
-        return predicates;
+        return QueryTemplate.of(state.root.getJavaType(), state.q).apply(state);
     }
 
-    protected static <T> Predicates addExpression(String s
-            , QueryState<T> state
-            , Predicates predicates) {
-        Expression<T> expression = state.list == null ? new Expression<>(s) : new Expression<>(state.tmp, state.list);
-        Predicate p = expression.apply(state);
-
-        if (expression.isAggregate()) {
-            predicates.having = true;
-        } else {
-            if (Objects.nonNull(expression.p1))
-                predicates.grouping.add(expression.p1);
-            if (Objects.nonNull(expression.p2))
-                predicates.grouping.add(expression.p2);
-        }
-        predicates.where = state.logical.isEmpty() || predicates.where == null
-                ? p
-                : Logical.apply(state.logical.pop(), state.cb, predicates.where, p);
-        return predicates;
+    private static <T> Predicates parse(QueryTemplate.Bound bound
+            , Metadata metadata
+            , CriteriaBuilder builder
+            , Root<T> root) {
+        return bound.apply(new QueryState<>(bound.getQ(), metadata, builder, root));
     }
 
-    private static <T> void checkFinal(QueryState<T> state
-            , Predicates predicates) {
-        if (state.isLast() && (state.str.isNotEmpty() || Str.isNotEmpty(state.tmp))) {
-            addExpression(state.getString(), state, predicates);
-        }
+    public static <T> Long count(String q, EntityManager em, Class<T> entityClass) {
+        return count(QueryTemplate.of(entityClass, q), em, entityClass);
     }
 
-    public static <T> Long count(String q, EntityManager em, Class<T> entityClass) {
+    static <T> Long count(QueryTemplate.Bound bound, EntityManager em, Class<T> entityClass) {
         CriteriaBuilder builder = em.getCriteriaBuilder();
         CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
         Root<T> root = countQuery.from(entityClass);
         countQuery.select(builder.countDistinct(root));
 
-        Predicates predicates = parse(new QueryState<T>(q, builder, root));
+        Predicates predicates = parse(bound, Metadata.of(em), builder, root);
 
         if (predicates.having)
             countQuery.having(predicates.where).distinct(true);
         else if(Objects.nonNull(predicates.where))
             countQuery.where(predicates.where);
-        return em.createQuery(countQuery).getSingleResult();
+        return bind(em.createQuery(countQuery), predicates).getSingleResult();
+    }
+
+    /**
+     * Look for a single matching id instead of counting every match. Joined collections are not made distinct
+     * and aggregate queries are grouped by the root, so the database can stop at the first row.
+     */
+    public static <T> boolean exists(String q, EntityManager em, Class<T> entityClass) {
+        return exists(QueryTemplate.of(entityClass, q), em, entityClass);
+    }
+
+    static <T> boolean exists(QueryTemplate.Bound bound, EntityManager em, Class<T> entityClass) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        Metadata metadata = Metadata.of(em);
+        CriteriaQuery<Tuple> idQuery = builder.createTupleQuery();
+        Root<T> root = idQuery.from(entityClass);
+        idQuery.multiselect(idSelections(root, metadata.idNames(entityClass)));
+
+        Predicates predicates = parse(bound, metadata, builder, root);
+        if (predicates.having) {
+            predicates.grouping.add(root);
+            idQuery.groupBy(predicates.groupBy()).having(predicates.where);
+        } else if (Objects.nonNull(predicates.where))
+            idQuery.where(predicates.where);
+        return !bind(em.createQuery(idQuery), predicates).setMaxResults(1).getResultList().isEmpty();
+    }
+
+    /**
+     * Delete every row matching the query with set based statements. Each round selects at most batchSize ids
+     * and removes them with a CriteriaDelete, so joins and aggregates in the query work the same as in a select.
+     * The persistence context is bypassed, no cascades or lifecycle callbacks are applied.
+     * @return The number of deleted rows
+     */
+    public static <T> int delete(String q, EntityManager em, Class<T> entityClass, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        Metadata metadata = Metadata.of(em);
+        String[] idNames = metadata.idNames(entityClass);
+        CriteriaQuery<Tuple> idQuery = builder.createTupleQuery();
+        Root<T> root = idQuery.from(entityClass);
+        idQuery.multiselect(idSelections(root, idNames));
+        Predicates predicates = parsePredicates(QueryTemplate.of(entityClass, q), metadata, builder, root, idQuery, null);
+
+        int count = 0;
+        List<Tuple> ids;
+        do {
+            ids = bind(em.createQuery(idQuery), predicates).setMaxResults(batchSize).getResultList();
+            int deleted = 0;
+            CriteriaDelete<T> delete = builder.createCriteriaDelete(entityClass);
+            Root<T> r = delete.from(entityClass);
+            List<Object[]> idValues = ids.stream().map(Tuple::toArray).collect(Collectors.toList());
+            for (List<Object[]> chunk : Lists.collate(idValues, inLimit(em), inLimit(em))) {
+                delete.where(idPredicate(chunk, idNames, builder, r));
+                deleted += em.createQuery(delete).executeUpdate();
+            }
+            count += deleted;
+            // nothing deleted means the remaining rows can't be, so stop instead of selecting them again
+            if (deleted == 0)
+                break;
+        } while (ids.size() == batchSize);
+        return count;
+    }
+
+    /**
+     * Assign values to every row matching the query with one CriteriaUpdate statement.
+     * Values are read for the type of each attribute the same way query values are, so "10" can set a Long.
+     * An update can't join, so when the query needs joins or aggregates the rows are matched with a subquery.
+     * The persistence context is bypassed, no lifecycle callbacks or version increments are applied.
+     * @return The number of updated rows
+     */
+    public static <T> int update(String q, EntityManager em, Class<T> entityClass, Map<String, Object> assignments) {
+        return update(QueryTemplate.of(entityClass, q), em, entityClass, assignments);
+    }
+
+    static <T> int update(QueryTemplate.Bound bound
+            , EntityManager em
+            , Class<T> entityClass
+            , Map<String, Object> assignments) {
+        if (assignments.isEmpty())
+            throw new IllegalArgumentException("nothing to update");
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        Metadata metadata = Metadata.of(em);
+        CriteriaUpdate<T> update = builder.createCriteriaUpdate(entityClass);
+        Root<T> root = update.from(entityClass);
+        // an update root can't join, so find out what the query needs on a select first
+        QueryState<T> state = new QueryState<>(bound.getQ(), metadata, builder, builder.createQuery(entityClass).from(entityClass));
+        Predicates predicates = bound.apply(state);
+        if (predicates.having || !state.joins.isEmpty()) {
+            Subquery<T> subquery = update.subquery(entityClass);
+            Root<T> matched = subquery.from(entityClass);
+            subquery.select(matched);
+            String[] idNames = metadata.idNames(entityClass);
+            Predicate[] correlation = new Predicate[idNames.length];
+            for (int i = 0; i < idNames.length; i++)
+                correlation[i] = builder.equal(matched.get(idNames[i]), root.get(idNames[i]));
+            predicates = parsePredicates(bound, metadata, builder, matched, subquery, builder.and(correlation));
+            update.where(builder.exists(subquery));
+        } else {
+            predicates = parse(bound, metadata, builder, root);
+            if (Objects.nonNull(predicates.where))
+                update.where(predicates.where);
+        }
+
+        for (Map.Entry<String, Object> assignment : assignments.entrySet()) {
+            Path path = root;
+            for (String name : assignment.getKey().split("\\."))
+                path = path.get(name);
+            assign(update, path, Expression.coerce(assignment.getKey(), assignment.getValue(), path), builder);
+        }
+        return bind(em.createQuery(update), predicates).executeUpdate();
+    }
+
+    private static <Y> void assign(CriteriaUpdate<?> update, Path<Y> path, Object value, CriteriaBuilder builder) {
+        if (value == null)
+            update.set(path, builder.nullLiteral(path.getJavaType()));
+        else
+            update.set(path, (Y) value);
     }
 
     private static <T> List<Order> sortToOrder(Collection<Sortable> sorting
@@ -309,36 +326,254 @@ public class QueryReader {
                 .collect(Collectors.toList());
     }
 
-    private static <T> void parsePredicates(String q
+    private static <T> Predicates parsePredicates(QueryTemplate.Bound bound
+            , Metadata metadata
             , CriteriaBuilder builder
             , Root<T> root
-            , CriteriaQuery<?> criteriaQuery) {
-        Predicates predicates = parse(new QueryState<T>(q, builder, root, null));
+            , AbstractQuery<?> criteriaQuery
+            , Predicate seek) {
+        return parsePredicates(parse(bound, metadata, builder, root), builder, root, criteriaQuery, seek);
+    }
+
+    private static <T> Predicates parsePredicates(Predicates predicates
+            , CriteriaBuilder builder
+            , Root<T> root
+            , AbstractQuery<?> criteriaQuery
+            , Predicate seek) {
         if (predicates.having) {
             predicates.grouping.add(root);
             criteriaQuery.groupBy(predicates.groupBy()).having(predicates.where).distinct(true);
+            if (Objects.nonNull(seek))
+                criteriaQuery.where(seek);
         } else if(Objects.nonNull(predicates.where))
-            criteriaQuery.where(predicates.where).distinct(true);
+            criteriaQuery.where(Objects.isNull(seek) ? predicates.where : builder.and(predicates.where, seek))
+                    .distinct(true);
+        else if (Objects.nonNull(seek))
+            criteriaQuery.where(seek);
+        return predicates;
+    }
+
+    private static <T> List<Sortable> sorting(Paginate pager, Metadata metadata, Root<T> root) {
+        return sorting(pager, metadata, root.getJavaType());
+    }
+
+    private static List<Sortable> sorting(Paginate pager, Metadata metadata, Class<?> entityClass) {
+        if (!pager.isKeyset())
+            return pager.getSorting();
+        return Keyset.keys(pager, metadata.idNames(entityClass));
+    }
+
+    private static <T> Predicate seek(Paginate pager
+            , List<Sortable> keys
+            , Metadata metadata
+            , CriteriaBuilder builder
+            , Root<T> root) {
+        return pager.isKeyset() && Objects.nonNull(pager.getAfter())
+                ? Keyset.after(builder, root, keys, Keyset.nullable(keys, metadata.entity(root.getJavaType()))
+                    , Keyset.decode(pager.getAfter(), keys, root))
+                : null;
+    }
+
+    private static <T> List<Order> order(Paginate pager
+            , List<Sortable> sorting
+            , Metadata metadata
+            , CriteriaBuilder builder
+            , Root<T> root) {
+        return pager.isKeyset()
+                ? Keyset.order(builder, root, sorting, Keyset.nullable(sorting, metadata.entity(root.getJavaType())))
+                : sortToOrder(sorting, builder, root);
+    }
+
+    private static void page(Query query, Paginate pager) {
+        // a keyset page seeks past the previous page so the offset is only used to reach the first page
+        boolean seeking = pager.isKeyset() && Objects.nonNull(pager.getAfter());
+        if (!seeking && pager.getOffset() > 0)
+            query.setFirstResult((int) pager.getOffset());
+        if (pager.getSize() > 0)
+            query.setMaxResults(pager.getSize() + lookahead(pager));
+    }
+
+    private static int lookahead(Paginate pager) {
+        return pager.isCountEnabled() ? pager.getCountStrategy().lookahead() : 0;
+    }
+
+    // drop the rows read past the page size and record whether there were any
+    private static <E> List<E> lookedAhead(List<E> rows, Paginate pager) {
+        if (lookahead(pager) == 0 || pager.getSize() <= 0)
+            return rows;
+        boolean more = rows.size() > pager.getSize();
+        pager.setMore(more);
+        return more ? new ArrayList<>(rows.subList(0, pager.getSize())) : rows;
     }
 
     public static boolean isLoaded(PersistenceUnitUtil util, Object o, String field) {
         return Reflect.getField(o, field).isPresent() && util.isLoaded(o, field);
     }
 
+    /**
+     * Compile the query once so any query of the same shape runs with its own values as parameters
+     * @param q A query whose shape the prepared query runs, its values are only used to read the shape
+     * @param sorting The order of the results
+     */
+    public static <T> Prepared<T> prepare(String q, List<Sortable> sorting, EntityManager em, Class<T> entityClass) {
+        QueryTemplate.Bound bound = QueryTemplate.of(entityClass, q);
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<T> criteriaQuery = builder.createQuery(entityClass);
+        Root<T> root = criteriaQuery.from(entityClass);
+        QueryState<T> state = new QueryState<>(q, Metadata.of(em), builder, root).parameterize();
+        Predicates predicates = parsePredicates(bound.apply(state), builder, root, criteriaQuery, null);
+        criteriaQuery.orderBy(sortToOrder(sorting, builder, root));
+
+        Set<Integer> slots = predicates.bindings.stream().map(it -> it.slot).collect(Collectors.toSet());
+        for (int i = 0; i < bound.getLiterals().length; i++) {
+            if (!slots.contains(i))
+                throw new BadQueryException(
+                        String.format("%s can't be passed as a parameter in %s", bound.getLiterals()[i], q));
+        }
+        return new Prepared<>(entityClass, bound.getTemplate().getShape(), criteriaQuery, predicates.bindings);
+    }
+
+    public static <T> Prepared<T> prepare(String q, EntityManager em, Class<T> entityClass) {
+        return prepare(q, new ArrayList<>(), em, entityClass);
+    }
+
+    /**
+     * A query compiled once for its shape, every run only binds the values of its query string.
+     * A prepared query is not thread safe and pages by offset.
+     */
+    public static class Prepared<T> {
+        private final Class<T> entityClass;
+        private final String shape;
+        private final CriteriaQuery<T> criteriaQuery;
+        private final List<Binding> bindings;
+
+        Prepared(Class<T> entityClass, String shape, CriteriaQuery<T> criteriaQuery, List<Binding> bindings) {
+            this.entityClass = entityClass;
+            this.shape = shape;
+            this.criteriaQuery = criteriaQuery;
+            this.bindings = bindings;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public List<T> list(EntityManager em, String q, Paginate pager) {
+            if (pager.isKeyset())
+                throw new IllegalArgumentException("a prepared query pages by offset");
+            TypedQuery<T> query = bind(em.createQuery(criteriaQuery), bindings, checked(q).getLiterals());
+            page(query, pager);
+            return lookedAhead(query.getResultList(), pager);
+        }
+
+        public List<T> list(EntityManager em, String q) {
+            return bind(em.createQuery(criteriaQuery), bindings, checked(q).getLiterals()).getResultList();
+        }
+
+        private QueryTemplate.Bound checked(String q) {
+            QueryTemplate.Bound bound = QueryTemplate.of(entityClass, q);
+            if (!shape.equals(bound.getTemplate().getShape()))
+                throw new BadQueryException(String.format("%s does not have the shape of the prepared query", q));
+            return bound;
+        }
+    }
+
     public static <T> List<T> queryList(String q, Paginate pager, EntityManager em, Class<T> entityClass) {
+        return queryList(QueryTemplate.of(entityClass, q), pager, em, entityClass);
+    }
+
+    private static <T> List<T> queryList(QueryTemplate.Bound bound
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass) {
+        return queryList(bound, pager, em, entityClass, null);
+    }
+
+    private static <T> List<T> queryList(QueryTemplate.Bound bound
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass
+            , FetchGraph<T> graph) {
         CriteriaBuilder builder = em.getCriteriaBuilder();
         CriteriaQuery<T> criteriaQuery = builder.createQuery(entityClass);
         Root<T> root = criteriaQuery.from(entityClass);
-        parsePredicates(q, builder, root, criteriaQuery);
+        Metadata metadata = Metadata.of(em);
+        List<Sortable> sorting = sorting(pager, metadata, root);
+        Predicates predicates =
+                parsePredicates(bound, metadata, builder, root, criteriaQuery, seek(pager, sorting, metadata, builder, root));
+
+        criteriaQuery.orderBy(order(pager, sorting, metadata, builder, root));
+        TypedQuery<T> query = bind(em.createQuery(criteriaQuery), predicates);
+        if (Objects.nonNull(graph))
+            graph.apply(query);
+        page(query, pager);
+
+        List<T> results = lookedAhead(query.getResultList(), pager);
+        if (pager.isKeyset())
+            pager.setNext(Keyset.next(results, pager, sorting));
+        return results;
+    }
 
-        criteriaQuery.orderBy(sortToOrder(pager.getSorting(), builder, root));
-        TypedQuery<T> query = em.createQuery(criteriaQuery);
+    /**
+     * Lazily read every entity matching the query, fetchSize rows at a time. Each chunk continues after
+     * the keys of the last row of the previous chunk and the entities of a chunk are detached once it is consumed,
+     * so memory stays flat however large the result is. Closing the stream detaches the current chunk.
+     */
+    public static <T> Stream<T> stream(String q
+            , List<Sortable> sorting
+            , int fetchSize
+            , EntityManager em
+            , Class<T> entityClass) {
+        if (fetchSize < 1)
+            throw new IllegalArgumentException("fetch size must be positive");
+        Chunks<T> chunks = new Chunks<>(QueryTemplate.of(entityClass, q), Pager.of(1, fetchSize).withSorting(sorting).keyset(), em, entityClass);
+        return StreamSupport.stream(chunks, false).onClose(chunks::detach);
+    }
 
-        if (pager.getOffset() > 0)
-            query.setFirstResult((int) pager.getOffset());
-        if (pager.getSize() > 0)
-            query.setMaxResults(pager.getSize());
-        return query.getResultList();
+    static class Chunks<T> extends Spliterators.AbstractSpliterator<T> {
+        private final QueryTemplate.Bound bound;
+        private final Pager pager;
+        private final EntityManager em;
+        private final Class<T> entityClass;
+        private List<T> chunk = new ArrayList<>();
+        private Iterator<T> iterator = chunk.iterator();
+        private boolean done;
+
+        Chunks(QueryTemplate.Bound bound, Pager pager, EntityManager em, Class<T> entityClass) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.bound = bound;
+            this.pager = pager;
+            this.em = em;
+            this.entityClass = entityClass;
+        }
+
+        @Override
+        public boolean tryAdvance(java.util.function.Consumer<? super T> action) {
+            if (!iterator.hasNext()) {
+                detach();
+                if (done)
+                    return false;
+                chunk = queryList(bound, pager, em, entityClass);
+                iterator = chunk.iterator();
+                if (Objects.isNull(pager.getNext()))
+                    done = true;
+                else
+                    pager.after(pager.getNext());
+                if (!iterator.hasNext())
+                    return false;
+            }
+            action.accept(iterator.next());
+            return true;
+        }
+
+        void detach() {
+            for (T t : chunk) {
+                if (em.isOpen() && em.contains(t))
+                    em.detach(t);
+            }
+            chunk = new ArrayList<>();
+            iterator = chunk.iterator();
+        }
     }
 
     public static <T> Paged<T> query(String q
@@ -346,72 +581,664 @@ public class QueryReader {
             , EntityManager em
             , Class<T> entityClass
             , Fetch.Plan fetchPlan) {
+        // parse once for both the page and the count
+        return query(QueryTemplate.of(entityClass, q), pager, em, entityClass, fetchPlan);
+    }
+
+    static <T> Paged<T> query(QueryTemplate.Bound bound
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass
+            , Fetch.Plan fetchPlan) {
+        CountStrategy strategy = pager.getCountStrategy();
+        CompletableFuture<Long> count = pager.isCountEnabled()
+                && pager.isParallelCount()
+                && strategy.lookahead() == 0
+                && !inTransaction(em)
+                ? countAsync(bound, strategy, Pager.of(pager).withSorting(new ArrayList<>(pager.getSorting()))
+                        , em.getEntityManagerFactory(), entityClass)
+                : null;
+        List<T> results = null;
+        try {
+            results = results(bound, pager, em, entityClass, fetchPlan);
+        } finally {
+            if (Objects.nonNull(count) && Objects.isNull(results))
+                count.cancel(false);
+        }
+        return Paged.of(results, counted(bound, pager, results.size(), count, em, entityClass));
+    }
+
+    // the pager with the total found by its count strategy, or by the count already running,
+    // which counts with a copy of the pager and leaves the results to set here after the join
+    private static <T> Paginate counted(QueryTemplate.Bound bound
+            , Paginate pager
+            , int found
+            , CompletableFuture<Long> count
+            , EntityManager em
+            , Class<T> entityClass) {
+        if (!pager.isCountEnabled())
+            return pager;
+        CountStrategy strategy = pager.getCountStrategy();
+        Long total = Objects.isNull(count)
+                ? strategy.count(counting(bound, pager, found, em, entityClass))
+                : join(count);
+        pager.setCountedBy(strategy.name());
+        return Objects.isNull(total) ? pager : pager.withCount(total);
+    }
+
+    /**
+     * Select only the paths of the projection instead of whole entities. Each row is a map of the selected values
+     * which never enters the persistence context. Basic values and to one associations are read by the page query,
+     * each collection is read by one more query over the ids of the page.
+     */
+    public static <T> Paged<Map<String, Object>> project(String q
+            , Projection projection
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass) {
+        return project(QueryTemplate.of(entityClass, q), projection, pager, em, entityClass);
+    }
+
+    static <T> Paged<Map<String, Object>> project(QueryTemplate.Bound bound
+            , Projection projection
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        Metadata metadata = Metadata.of(em);
+        Projection.Resolved resolved = projection.resolve(metadata, entityClass);
+        CriteriaQuery<Tuple> rowQuery = builder.createTupleQuery();
+        Root<T> root = rowQuery.from(entityClass);
+
+        String[] idNames = metadata.idNames(entityClass);
+        List<Sortable> sorting = sorting(pager, metadata, root);
+        List<String> basic = new ArrayList<>(resolved.basic);
+        Map<String, From<?, ?>> joins = new HashMap<>();
+        // ids first, then the sort keys for keyset tokens and distinct ordering, then the projected paths
+        List<Selection> selections = new ArrayList<>(Arrays.asList(idSelections(root, idNames)));
+        sorting.forEach(it -> selections.add(root.get(it.getName())));
+        basic.forEach(it -> selections.add(projectedPath(root, it, joins)));
+        rowQuery.multiselect(selections.toArray(new Selection[0]));
+        Predicates predicates =
+                parsePredicates(bound, metadata, builder, root, rowQuery, seek(pager, sorting, metadata, builder, root));
+        rowQuery.orderBy(order(pager, sorting, metadata, builder, root));
+        TypedQuery<Tuple> query = bind(em.createQuery(rowQuery), predicates);
+        page(query, pager);
+
+        List<Tuple> tuples = lookedAhead(query.getResultList(), pager);
+        if (pager.isKeyset())
+            pager.setNext(Keyset.next(tuples, pager, idNames.length, sorting.size()));
+
+        int offset = idNames.length + sorting.size();
+        Map<List<Object>, Map<String, Object>> rows = new LinkedHashMap<>();
+        for (Tuple tuple : tuples) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < basic.size(); i++)
+                Projection.put(row, basic.get(i), tuple.get(offset + i));
+            rows.put(key(tuple, 0, idNames.length), row);
+        }
+        projectCollections(entityClass, rows, resolved.collections, em, builder, metadata);
+        List<Map<String, Object>> page = new ArrayList<>(rows.values());
+        return Paged.of(page, counted(bound, pager, page.size(), null, em, entityClass));
+    }
+
+    // fill the collections of each parent row, one query per collection and chunk of parent ids
+    private static void projectCollections(Class<?> parentClass
+            , Map<List<Object>, Map<String, Object>> parents
+            , Map<String, Projection> collections
+            , EntityManager em
+            , CriteriaBuilder builder
+            , Metadata metadata) {
+        if (parents.isEmpty() || collections.isEmpty())
+            return;
+        String[] parentIds = metadata.idNames(parentClass);
+        List<Object[]> keys = parents.keySet().stream().map(List::toArray).collect(Collectors.toList());
+
+        for (Map.Entry<String, Projection> collection : collections.entrySet()) {
+            String path = collection.getKey();
+            int dot = path.lastIndexOf('.');
+            String name = path.substring(dot + 1);
+            Class<?> owner = dot < 0 ? parentClass : metadata.type(parentClass, path.substring(0, dot))
+                    .orElseThrow(() -> new BadQueryException("Unable to project " + path));
+            boolean isMap = ((PluralAttribute<?, ?, ?>) metadata.entity(owner).getAttribute(name))
+                    .getCollectionType() == PluralAttribute.CollectionType.MAP;
+            Class<?> elementClass = metadata.entity(owner).getAttributeClass(name);
+            boolean isEntity = metadata.isEntity(elementClass);
+            String[] elementIds = isEntity ? metadata.idNames(elementClass) : new String[0];
+            Projection.Resolved resolved = isEntity ? collection.getValue().resolve(metadata, elementClass) : null;
+            List<String> basic = isEntity ? new ArrayList<>(resolved.basic) : new ArrayList<>();
+
+            Map<List<Object>, Object> values = new HashMap<>();
+            parents.forEach((k, v) -> {
+                Object value = isMap ? new LinkedHashMap<>() : new ArrayList<>();
+                values.put(k, value);
+                Projection.put(v, path, value);
+            });
+            Map<List<Object>, Map<String, Object>> elements = new LinkedHashMap<>();
+            for (List<Object[]> chunk : Lists.collate(keys, inLimit(em), inLimit(em))) {
+                CriteriaQuery<Tuple> collectionQuery = builder.createTupleQuery();
+                Root<?> root = collectionQuery.from(parentClass);
+                From<?, ?> from = root;
+                if (dot > 0)
+                    for (String it : path.substring(0, dot).split("\\."))
+                        from = from.join(it);
+                Join<?, ?> join = isMap ? from.joinMap(name) : from.join(name);
+
+                List<Selection> selections = new ArrayList<>(Arrays.asList(idSelections(root, parentIds)));
+                if (isMap)
+                    selections.add(((MapJoin<?, ?, ?>) join).key());
+                if (isEntity) {
+                    Map<String, From<?, ?>> joins = new HashMap<>();
+                    for (String id : elementIds)
+                        selections.add(join.get(id));
+                    basic.forEach(it -> selections.add(projectedPath(join, it, joins)));
+                } else
+                    selections.add(join);
+                collectionQuery.multiselect(selections.toArray(new Selection[0]))
+                        .where(idPredicate(chunk, parentIds, builder, root));
+
+                int offset = parentIds.length + (isMap ? 1 : 0);
+                for (Tuple tuple : em.createQuery(collectionQuery).getResultList()) {
+                    Object element;
+                    if (isEntity) {
+                        element = elements.computeIfAbsent(key(tuple, offset, offset + elementIds.length), k -> {
+                            Map<String, Object> row = new LinkedHashMap<>();
+                            for (int i = 0; i < basic.size(); i++)
+                                Projection.put(row, basic.get(i), tuple.get(offset + elementIds.length + i));
+                            return row;
+                        });
+                    } else
+                        element = tuple.get(offset);
+                    Object value = values.get(key(tuple, 0, parentIds.length));
+                    if (isMap)
+                        ((Map<Object, Object>) value).put(tuple.get(parentIds.length), element);
+                    else
+                        ((List<Object>) value).add(element);
+                }
+            }
+            if (isEntity)
+                projectCollections(elementClass, elements, resolved.collections, em, builder, metadata);
+        }
+    }
+
+    // the path of a projected attribute, associations along the way are left joined once
+    private static Path<?> projectedPath(From<?, ?> from, String path, Map<String, From<?, ?>> joins) {
+        String[] names = path.split("\\.");
+        From<?, ?> parent = from;
+        for (int i = 0; i < names.length - 1; i++) {
+            String prefix = String.join(".", Arrays.copyOfRange(names, 0, i + 1));
+            From<?, ?> join = joins.get(prefix);
+            if (join == null) {
+                join = parent.join(names[i], JoinType.LEFT);
+                joins.put(prefix, join);
+            }
+            parent = join;
+        }
+        return parent.get(names[names.length - 1]);
+    }
+
+    public static javax.persistence.criteria.Expression applyFunction(Function function
+            , javax.persistence.criteria.Expression expression
+            , CriteriaBuilder cb) {
+        if (function == Function.count) {
+            return cb.count(expression);
+        } else if (function == Function.avg) {
+            return cb.avg(expression);
+        } else if (function == Function.sum) {
+            return cb.sum(expression);
+        } else if (function == Function.max) {
+            return cb.max(expression);
+        } else if (function == Function.min) {
+            return cb.min(expression);
+        } else if (function == Function.greatest) {
+            return cb.greatest(expression);
+        } else if (function == Function.least) {
+            return cb.least(expression);
+        } else if (function == Function.count_distinct) {
+            return cb.countDistinct(expression);
+        }
+        return cb.count(expression);
+    }
+
+    /**
+     * Group the rows matching the query and compute the aggregates of each group in the database
+     */
+    public static <T> List<Aggregation.Row> aggregate(String q
+            , Aggregation aggregation
+            , EntityManager em
+            , Class<T> entityClass) {
+        return aggregate(QueryTemplate.of(entityClass, q), aggregation, em, entityClass);
+    }
+
+    static <T> List<Aggregation.Row> aggregate(QueryTemplate.Bound bound
+            , Aggregation aggregation
+            , EntityManager em
+            , Class<T> entityClass) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<T> root = query.from(entityClass);
+        QueryState<T> state = new QueryState<>(bound.getQ(), Metadata.of(em), builder, root);
+        query.multiselect(aggregated(state, bound, aggregation, root, query));
+        List<String> names = aggregation.names();
+        return limit(bind(em.createQuery(query), state.bindings, null), aggregation).getResultList().stream().map(tuple -> {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < names.size(); i++)
+                values.put(names.get(i), tuple.get(i));
+            return new Aggregation.Row(values);
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Group the rows matching the query into instances of rowClass,
+     * constructed with the group by values followed by the aggregates
+     */
+    public static <T, R> List<R> aggregate(String q
+            , Aggregation aggregation
+            , Class<R> rowClass
+            , EntityManager em
+            , Class<T> entityClass) {
+        return aggregate(QueryTemplate.of(entityClass, q), aggregation, rowClass, em, entityClass);
+    }
+
+    static <T, R> List<R> aggregate(QueryTemplate.Bound bound
+            , Aggregation aggregation
+            , Class<R> rowClass
+            , EntityManager em
+            , Class<T> entityClass) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<R> query = builder.createQuery(rowClass);
+        Root<T> root = query.from(entityClass);
+        QueryState<T> state = new QueryState<>(bound.getQ(), Metadata.of(em), builder, root);
+        query.select(builder.construct(rowClass, aggregated(state, bound, aggregation, root, query)));
+        return limit(bind(em.createQuery(query), state.bindings, null), aggregation).getResultList();
+    }
+
+    private static <R> TypedQuery<R> limit(TypedQuery<R> query, Aggregation aggregation) {
+        if (Objects.nonNull(aggregation.getLimit()))
+            query.setMaxResults(aggregation.getLimit());
+        return query;
+    }
+
+    // group, filter and order the query, returning the group by and aggregate selections
+    private static <T> Selection[] aggregated(QueryState<T> state
+            , QueryTemplate.Bound bound
+            , Aggregation aggregation
+            , Root<T> root
+            , CriteriaQuery<?> query) {
+        Metadata metadata = state.metadata;
+        CriteriaBuilder builder = state.cb;
+        Predicates predicates = bound.apply(state);
+
+        // resolve the paths with the joins of the predicates so both refer to the same rows
+        Map<String, javax.persistence.criteria.Expression> selected = new LinkedHashMap<>();
+        List<javax.persistence.criteria.Expression<?>> grouping = new ArrayList<>();
+        for (String path : aggregation.getGroupBy()) {
+            javax.persistence.criteria.Expression expression = aggregatePath(root, path, metadata, state.joins);
+            selected.put(path, expression);
+            grouping.add(expression);
+        }
+        for (Aggregation.Aggregate aggregate : aggregation.getAggregates()) {
+            javax.persistence.criteria.Expression expression = aggregate.getPath().isEmpty()
+                    ? root
+                    : aggregatePath(root, aggregate.getPath(), metadata, state.joins);
+            selected.put(aggregate.getAlias(), applyFunction(aggregate.getFunction(), expression, builder));
+        }
+        query.groupBy(grouping);
+        // plain conditions filter the rows before they are grouped, only aggregate conditions filter the groups
+        if (predicates.mixed)
+            throw new BadQueryException("an aggregate condition can only be combined with other conditions by and");
+        if (Objects.nonNull(predicates.rows))
+            query.where(predicates.rows);
+        if (Objects.nonNull(predicates.groups))
+            query.having(predicates.groups);
+
+        List<Order> orders = new ArrayList<>();
+        for (Sortable sortable : aggregation.getSorting()) {
+            javax.persistence.criteria.Expression expression = selected.get(sortable.getName());
+            if (expression == null)
+                throw new BadQueryException(String.format("%s is not grouped or aggregated", sortable.getName()));
+            orders.add(sortable.isAscending() ? builder.asc(expression) : builder.desc(expression));
+        }
+        query.orderBy(orders);
+        return selected.values().toArray(new Selection[0]);
+    }
+
+    // joins are keyed by the joined path like the predicate joins, an association at the end of the path is joined too
+    private static javax.persistence.criteria.Expression aggregatePath(Root<?> root
+            , String path
+            , Metadata metadata
+            , Map<String, From> joins) {
+        int dot = path.lastIndexOf('.');
+        String name = path.substring(dot + 1);
+        Class<?> owner = dot < 0 ? root.getJavaType() : metadata.type(root.getJavaType(), path.substring(0, dot))
+                .orElseThrow(() -> new BadQueryException("Unknown path " + path));
+        Metadata.Entity entity = metadata.entity(owner);
+        if (!entity.hasAttribute(name))
+            throw new BadQueryException(String.format("%s has no attribute %s", owner.getSimpleName(), name));
+        boolean joined = entity.isAssociation(name) || entity.getAttribute(name).isCollection();
+        String joinPath = joined ? path : path.substring(0, Math.max(dot, 0));
+        From from = root;
+        if (!joinPath.isEmpty()) {
+            from = joins.get(joinPath);
+            if (from == null) {
+                from = root;
+                for (String it : joinPath.split("\\."))
+                    from = from.join(it, JoinType.LEFT);
+                joins.put(joinPath, from);
+            }
+        }
+        return joined ? from : from.get(name);
+    }
+
+    private static List<Object> key(Tuple tuple, int from, int to) {
+        List<Object> key = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++)
+            key.add(tuple.get(i));
+        return key;
+    }
+
+    private static <T> CountStrategy.Counting<T> counting(QueryTemplate.Bound bound
+            , Paginate pager
+            , int found
+            , EntityManager em
+            , Class<T> entityClass) {
+        return new CountStrategy.Counting<>(entityClass
+                , bound.getKey()
+                , pager
+                , found
+                , () -> count(bound, em, entityClass)
+                , max -> countUpTo(bound, em, entityClass, max));
+    }
+
+    // count the ids of at most max matching rows
+    private static <T> Long countUpTo(QueryTemplate.Bound bound, EntityManager em, Class<T> entityClass, long max) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        Metadata metadata = Metadata.of(em);
+        CriteriaQuery<Tuple> idQuery = builder.createTupleQuery();
+        Root<T> root = idQuery.from(entityClass);
+        idQuery.multiselect(idSelections(root, metadata.idNames(entityClass)));
+        Predicates predicates = parsePredicates(bound, metadata, builder, root, idQuery, null);
+        return (long) bind(em.createQuery(idQuery), predicates)
+                .setMaxResults((int) Math.min(max, Integer.MAX_VALUE))
+                .getResultList().size();
+    }
+
+    private static <T> List<T> results(QueryTemplate.Bound bound
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass
+            , Fetch.Plan fetchPlan) {
         List<T> results = null;
+        if (fetchPlan.isGraph()) {
+            FetchGraph<T> graph = FetchGraph.of(fetchPlan, em, entityClass);
+            if (!graph.isEmpty()) {
+                // a graph with a collection multiplies the rows, so the page is limited by an id query first
+                results = graph.hasCollection()
+                        ? graphFetchQuery(pageIds(bound, pager, em, entityClass), em, entityClass, graph)
+                        : queryList(bound, pager, em, entityClass, graph);
+                fetchPlan = graph.getRemaining();
+            }
+        }
         if (fetchPlan.isEmpty()) {
-            results = queryList(q, pager, em, entityClass);
+            if (results == null)
+                results = queryList(bound, pager, em, entityClass);
         } else {
-            if (fetchPlan.hasJoins() && Safe.of(fetchPlan.joins("")).q(List::size).orElse(0) > 0) {
+            if (results == null
+                    && fetchPlan.hasJoins() && Safe.of(fetchPlan.joins("")).q(List::size).orElse(0) > 0) {
                 CriteriaBuilder builder = em.getCriteriaBuilder();
-                CriteriaQuery<Tuple> idQuery = builder.createTupleQuery();
-                Root<T> root = idQuery.from(entityClass);
-
-                List<Order> orders = sortToOrder(pager.getSorting(), builder, root);
-                if (orders.isEmpty())
-                    idQuery.multiselect(idSelections(root));
-                else idQuery.multiselect(Stream.concat(Stream.of(idSelections(root))
-                        , Stream.of(pager.getSorting().stream()
-                                .map(Sortable::getName)
-                                .map((java.util.function.Function<String, Path>) root::get).toArray(Selection[]::new)))
-                        .toArray(Selection[]::new));
-
-                parsePredicates(q, builder, root, idQuery);
-                idQuery.orderBy(orders);
-                TypedQuery<Tuple> query = em.createQuery(idQuery);
-
-                if (pager.getOffset() > 0)
-                    query.setFirstResult((int) pager.getOffset());
-                if (pager.getSize() > 0)
-                    query.setMaxResults(pager.getSize());
-
-                // first just get the ids with pagination
-                List<Tuple> ids = query.getResultList();
+                List<Tuple> ids = pageIds(bound, pager, em, entityClass);
+                List<Sortable> sorting = sorting(pager, Metadata.of(em), entityClass);
 
                 String[] joinPaths = fetchPlan.getJoinPaths();
-                results = joinFetchQuery(ids, orders, entityClass, em, builder, fetchPlan.joins(joinPaths[0]));
-                joinFetch(results, Arrays.copyOfRange(joinPaths, 1, joinPaths.length), em, builder, fetchPlan);
+                if (isParallel(fetchPlan, em)) {
+                    // only the first join is read with the entities, the rest of the root joins run in parallel
+                    results = joinFetchQuery(ids, sorting, entityClass, em, builder
+                            , fetchPlan.joins(joinPaths[0]).subList(0, 1));
+                    joinFetch(results, joinPaths, em, builder, fetchPlan);
+                } else {
+                    results = joinFetchQuery(ids, sorting, entityClass, em, builder, fetchPlan.joins(joinPaths[0]));
+                    joinFetch(results, Arrays.copyOfRange(joinPaths, 1, joinPaths.length), em, builder, fetchPlan);
+                }
             }
             if (results == null)
-                results = queryList(q, pager, em, entityClass);
+                results = queryList(bound, pager, em, entityClass);
+            fetch(results, em, fetchPlan);
+        }
+        return results;
+    }
 
-            if (fetchPlan.hasQueries()) {
-                PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
-                CriteriaBuilder builder = em.getCriteriaBuilder();
-                for (String path: fetchPlan.getQueryPaths()) {
-                    for (Fetch fetch : fetchPlan.queries(path)) {
-                        List<?> gathered = path.isEmpty() ? results : traversePath(results, path);
-                        Root root = null;
-                        if (gathered.size() > 0) {
-                            root = builder.createQuery().from(gathered.get(0).getClass());
-                        }
-                        for (Object result : gathered) {
-                            try {
-                                if (!isLoaded(util, result, fetch.getName())) {
-                                    Reflect.setFieldValue(result
-                                            , fetch.getName()
-                                            , lazyFetchQuery(result, root, em, builder, fetch));
-                                }
-                            } catch (ReflectiveOperationException e) {
-                                e.printStackTrace();
+    // fetch the associations of the plan for all the results
+    private static <T> void fetch(List<T> results, EntityManager em, Fetch.Plan fetchPlan) {
+        if (fetchPlan.hasQueries()) {
+            PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+            CriteriaBuilder builder = em.getCriteriaBuilder();
+            for (String path: fetchPlan.getQueryPaths()) {
+                for (Fetch fetch : fetchPlan.queries(path)) {
+                    List<?> gathered = path.isEmpty() ? results : traversePath(results, path);
+                    if (fetchPlan.isBatched() && gathered.size() > 1
+                            && batchFetchQuery(gathered, em, builder, fetch, fetchPlan.isWindowed()))
+                        continue;
+                    for (Object result : gathered) {
+                        try {
+                            if (!isLoaded(util, result, fetch.getName())) {
+                                Reflect.setFieldValue(result
+                                        , fetch.getName()
+                                        , lazyFetchQuery(result, em, builder, fetch));
                             }
+                        } catch (ReflectiveOperationException e) {
+                            throw new AccessException(result.getClass(), fetch.getName(), e);
                         }
                     }
                 }
             }
-            if (fetchPlan.hasJoins()) {
-                joinFetch(results, fetchPlan.getJoinPaths(), em, em.getCriteriaBuilder(), fetchPlan);
+        }
+        if (fetchPlan.hasJoins()) {
+            joinFetch(results, fetchPlan.getJoinPaths(), em, em.getCriteriaBuilder(), fetchPlan);
+        }
+    }
+
+    // the ids of a page followed by its sort keys
+    private static <T> List<Tuple> pageIds(QueryTemplate.Bound bound
+            , Paginate pager
+            , EntityManager em
+            , Class<T> entityClass) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<Tuple> idQuery = builder.createTupleQuery();
+        Root<T> root = idQuery.from(entityClass);
+        Metadata metadata = Metadata.of(em);
+
+        List<Sortable> sorting = sorting(pager, metadata, root);
+        Selection[] idSelections = idSelections(root, metadata.idNames(entityClass));
+        List<Order> orders = order(pager, sorting, metadata, builder, root);
+        if (orders.isEmpty())
+            idQuery.multiselect(idSelections);
+        else idQuery.multiselect(Stream.concat(Stream.of(idSelections)
+                , Stream.of(sorting.stream()
+                        .map(Sortable::getName)
+                        .map((java.util.function.Function<String, Path>) root::get).toArray(Selection[]::new)))
+                .toArray(Selection[]::new));
+
+        Predicates predicates =
+                parsePredicates(bound, metadata, builder, root, idQuery, seek(pager, sorting, metadata, builder, root));
+        idQuery.orderBy(orders);
+        TypedQuery<Tuple> query = bind(em.createQuery(idQuery), predicates);
+        page(query, pager);
+
+        List<Tuple> ids = lookedAhead(query.getResultList(), pager);
+        if (pager.isKeyset())
+            pager.setNext(Keyset.next(ids, pager, metadata.idNames(entityClass).length));
+        return ids;
+    }
+
+    // load the entities of the ids with the graph, in the order of the ids
+    private static <T> List<T> graphFetchQuery(List<Tuple> ids
+            , EntityManager em
+            , Class<T> entityClass
+            , FetchGraph<T> graph) {
+        if (ids.isEmpty())
+            return new ArrayList<>();
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<T> criteriaQuery = builder.createQuery(entityClass);
+        Root<T> root = criteriaQuery.from(entityClass);
+        String[] idNames = Metadata.of(em).idNames(entityClass);
+        List<Object[]> idValues = idValues(ids, idNames);
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+
+        Map<Object, T> byId = new HashMap<>();
+        for (List<Object[]> chunk : Lists.collate(idValues, inLimit(em), inLimit(em))) {
+            criteriaQuery.where(idPredicate(chunk, idNames, builder, root)).distinct(true);
+            for (T t : graph.apply(em.createQuery(criteriaQuery)).getResultList())
+                byId.put(id(util, t, idNames), t);
+        }
+        return idValues.stream()
+                .map(it -> byId.get(idNames.length == 1 ? it[0] : Arrays.asList(it)))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Find the entities of the ids with one query per chunk of ids, then fetch the plan once for all of them.
+     * An id is the value of the id attribute, an @EmbeddedId or an @IdClass instance.
+     * @return The entities in the order of the ids and the ids which were not found
+     */
+    static <ID, T> Retrieved<ID, T> getAll(Collection<ID> ids
+            , EntityManager em
+            , Class<T> entityClass
+            , Fetch.Plan fetchPlan) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<T> criteriaQuery = builder.createQuery(entityClass);
+        Root<T> root = criteriaQuery.from(entityClass);
+        String[] idNames = Metadata.of(em).idNames(entityClass);
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+
+        // the key of an id is read the same way the key of a loaded entity is, so they can be matched
+        Map<ID, Object> keys = new LinkedHashMap<>();
+        Map<Object, Object[]> idValues = new LinkedHashMap<>();
+        for (ID id : ids) {
+            if (id == null || keys.containsKey(id))
+                continue;
+            Object[] values = idNames.length == 1
+                    ? new Object[] { Expression.coerce(idNames[0], id, root.get(idNames[0])) }
+                    : idValues(id, idNames);
+            Object key = idNames.length == 1 ? values[0] : Arrays.asList(values);
+            keys.put(id, key);
+            idValues.putIfAbsent(key, values);
+        }
+
+        FetchGraph<T> graph = null;
+        if (fetchPlan.isGraph()) {
+            graph = FetchGraph.of(fetchPlan, em, entityClass);
+            if (graph.isEmpty())
+                graph = null;
+            else
+                fetchPlan = graph.getRemaining();
+        }
+
+        Map<Object, T> byId = new HashMap<>();
+        for (List<Object[]> chunk : Lists.collate(new ArrayList<>(idValues.values()), inLimit(em), inLimit(em))) {
+            criteriaQuery.where(idPredicate(chunk, idNames, builder, root)).distinct(true);
+            TypedQuery<T> query = em.createQuery(criteriaQuery);
+            for (T t : (graph == null ? query : graph.apply(query)).getResultList())
+                byId.put(id(util, t, idNames), t);
+        }
+        if (!fetchPlan.isEmpty() && !byId.isEmpty())
+            fetch(new ArrayList<>(byId.values()), em, fetchPlan);
+
+        List<T> entities = new ArrayList<>();
+        List<ID> missing = new ArrayList<>();
+        for (ID id : ids) {
+            T t = id == null ? null : byId.get(keys.get(id));
+            if (t == null)
+                missing.add(id);
+            else
+                entities.add(t);
+        }
+        return Retrieved.of(entities, missing);
+    }
+
+    private static List<Object[]> idValues(List<Tuple> ids, String[] idNames) {
+        return ids.stream().map(it -> {
+            Object[] id = new Object[idNames.length];
+            for (int i = 0; i < idNames.length; i++)
+                id[i] = it.get(i);
+            return id;
+        }).collect(Collectors.toList());
+    }
+
+    private static Executor countExecutor;
+
+    /**
+     * Set the executor which runs parallel counts, by default a cached pool of daemon threads
+     */
+    public static synchronized void countExecutor(Executor executor) {
+        countExecutor = executor;
+    }
+
+    private static synchronized Executor getCountExecutor() {
+        if (countExecutor == null)
+            countExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "brew-count");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return countExecutor;
+    }
+
+    private static Executor fetchExecutor;
+
+    /**
+     * Set the executor which runs the join queries of a parallel fetch plan, by default a cached pool of daemon threads
+     */
+    public static synchronized void fetchExecutor(Executor executor) {
+        fetchExecutor = executor;
+    }
+
+    private static synchronized Executor getFetchExecutor() {
+        if (fetchExecutor == null)
+            fetchExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "brew-fetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return fetchExecutor;
+    }
+
+    private static boolean inTransaction(EntityManager em) {
+        EntityTransaction trx = DataStore.tryTransaction(em);
+        return trx != null && trx.isActive();
+    }
+
+    // like counts, fetches only run on entity managers of their own outside of a transaction,
+    // other entity managers wouldn't see its changes and the caller's entities would get their collections
+    private static boolean isParallel(Fetch.Plan fetchPlan, EntityManager em) {
+        return fetchPlan.isParallel() && !inTransaction(em);
+    }
+
+    // count on an entity manager of its own since an entity manager can't be shared between threads,
+    // the pager is a copy the calling thread doesn't change while the page is read
+    private static <T> CompletableFuture<Long> countAsync(QueryTemplate.Bound bound
+            , CountStrategy strategy
+            , Paginate pager
+            , EntityManagerFactory factory
+            , Class<T> entityClass) {
+        return CompletableFuture.supplyAsync(() -> {
+            EntityManager em = factory.createEntityManager();
+            try {
+                return strategy.count(counting(bound, pager, -1, em, entityClass));
+            } finally {
+                em.close();
             }
+        }, getCountExecutor());
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
         }
-        return Paged.of(results, pager.isCountEnabled() ? pager.withCount(count(q, em, entityClass)) : pager);
     }
 
     private static <T> void joinFetch(List<T> results
@@ -420,11 +1247,15 @@ public class QueryReader {
             , CriteriaBuilder builder
             , Fetch.Plan fetchPlan) {
         if (results.size() > 0) {
+            if (isParallel(fetchPlan, em)) {
+                parallelJoinFetch(results, joinPaths, em, fetchPlan);
+                fetchPlan.clearJoins();
+                return;
+            }
             for (String path : joinPaths) {
-                List<Object> gathered = traversePath(results, path);
+                List<Object> gathered = path.isEmpty() ? new ArrayList<>(results) : traversePath(results, path);
                 if (gathered.size() > 0)
                     joinFetchRemaining(gathered
-                            , null
                             , gathered.get(0).getClass()
                             , em
                             , builder
@@ -435,6 +1266,139 @@ public class QueryReader {
         }
     }
 
+    /**
+     * Paths are sorted by depth and the paths of one depth only read parents loaded by the paths above,
+     * so every depth runs its join queries at the same time on entity managers of their own.
+     * The parents are gathered and their ids read on this thread, other threads only run queries.
+     */
+    private static <T> void parallelJoinFetch(List<T> results
+            , String[] joinPaths
+            , EntityManager em
+            , Fetch.Plan fetchPlan) {
+        EntityManagerFactory factory = em.getEntityManagerFactory();
+        PersistenceUnitUtil util = factory.getPersistenceUnitUtil();
+        Metadata metadata = Metadata.of(em);
+        Map<Long, List<String>> depths = Arrays.stream(joinPaths)
+                .collect(Collectors.groupingBy(it -> it.isEmpty() ? 0L : it.chars().filter(c -> c == '.').count() + 1
+                        , TreeMap::new
+                        , Collectors.toList()));
+        for (List<String> paths : depths.values()) {
+            List<Runnable> stitches = new ArrayList<>();
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (String path : paths) {
+                List<?> gathered = path.isEmpty() ? results : traversePath(results, path);
+                if (gathered.isEmpty())
+                    continue;
+                Class<?> entityClass = gathered.get(0).getClass();
+                String[] idNames = metadata.idNames(entityClass);
+                for (Fetch fetch : fetchPlan.joins(path)) {
+                    String name = fetch.getName().split("\\.")[0];
+                    List<?> parents = gathered.stream()
+                            .filter(it -> !isLoaded(util, it, name))
+                            .collect(Collectors.toList());
+                    if (parents.isEmpty())
+                        continue;
+                    List<Object[]> ids = parents.stream().map(it -> idValues(it, idNames)).collect(Collectors.toList());
+                    CompletableFuture<List<?>> fetched = CompletableFuture.supplyAsync(
+                            () -> joinFetchQuery(ids, entityClass, idNames, fetch, factory), getFetchExecutor());
+                    futures.add(fetched);
+                    stitches.add(() -> stitch(parents, join(fetched), util, idNames, name));
+                }
+            }
+            if (!futures.isEmpty())
+                join(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])));
+            stitches.forEach(Runnable::run);
+        }
+    }
+
+    // run one join query on an entity manager of its own since an entity manager can't be shared between threads
+    private static List<?> joinFetchQuery(List<Object[]> ids
+            , Class<?> entityClass
+            , String[] idNames
+            , Fetch fetch
+            , EntityManagerFactory factory) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            CriteriaBuilder builder = em.getCriteriaBuilder();
+            CriteriaQuery criteriaQuery = builder.createQuery(entityClass);
+            Root root = criteriaQuery.from(entityClass);
+            QueryState.buildFetchJoins(fetch.getName(), root, new HashMap<>());
+            return explicitIn(criteriaQuery, idNames, ids, em, builder, root);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Set the association of each parent from the fetched entity with the same id, a hash join on the id
+     * so the order and size of the fetched entities don't matter.
+     * A parent fetched by the same entity manager is the fetched entity itself and is already loaded.
+     */
+    private static void stitch(List<?> parents
+            , List<?> fetched
+            , PersistenceUnitUtil util
+            , String[] idNames
+            , String name) {
+        if (parents.isEmpty())
+            return;
+        Map<Object, Object> byId = new HashMap<>(fetched.size() * 2);
+        for (Object o : fetched)
+            byId.put(id(util, o, idNames), o);
+        for (Object parent : parents) {
+            Object o = byId.get(id(util, parent, idNames));
+            if (o == null || o == parent)
+                continue;
+            try {
+                Accessor.of(parent.getClass(), name).set(parent, Accessor.of(o.getClass(), name).get(o));
+            } catch (ReflectiveOperationException e) {
+                throw new AccessException(parent.getClass(), name, e);
+            }
+        }
+    }
+
+    // composite ids are compared by their values since an id class may not implement equals
+    private static Object id(PersistenceUnitUtil util, Object entity, String[] idNames) {
+        return idNames.length == 1 ? util.getIdentifier(entity) : Arrays.asList(idValues(entity, idNames));
+    }
+
+    /**
+     * A cached way to read and write an attribute of a class. Values are read with the getter, so proxies are
+     * read through, and written to the field itself, since a setter copying into the current collection
+     * would initialize it.
+     */
+    private static class Accessor {
+        private static final Map<Class<?>, Map<String, Accessor>> accessors = new ConcurrentHashMap<>();
+
+        static Accessor of(Class<?> cls, String name) throws NoSuchFieldException {
+            Map<String, Accessor> byName = accessors.computeIfAbsent(cls, k -> new ConcurrentHashMap<>());
+            Accessor accessor = byName.get(name);
+            if (accessor == null) {
+                Field field = Reflect.getField(cls, name)
+                        .orElseThrow(() -> new NoSuchFieldException("no such field " + name));
+                field.setAccessible(true);
+                accessor = new Accessor(field, Reflect.getGetter(field, cls).orElse(null));
+                byName.put(name, accessor);
+            }
+            return accessor;
+        }
+
+        private final Field field;
+        private final Method getter;
+
+        private Accessor(Field field, Method getter) {
+            this.field = field;
+            this.getter = getter;
+        }
+
+        Object get(Object o) throws ReflectiveOperationException {
+            return getter == null ? field.get(o) : getter.invoke(o);
+        }
+
+        void set(Object o, Object value) throws ReflectiveOperationException {
+            field.set(o, value);
+        }
+    }
+
     private static void _traversePath(Collection<?> results
             , String path
             , List<String> fields
@@ -461,7 +1425,7 @@ public class QueryReader {
                             , collected);
                 }
             } catch (ReflectiveOperationException e) {
-                e.printStackTrace();
+                throw new AccessException(result.getClass(), field, e);
             }
         }
     }
@@ -472,57 +1436,6 @@ public class QueryReader {
         return list;
     }
 
-    private static Class getEntityClass(Attribute attribute, EntityType entityType) {
-       if (attribute.isCollection()) {
-           Class cls = attribute.getJavaType();
-           if (cls == List.class)
-               return entityType.getList(attribute.getName()).getElementType().getJavaType();
-           else if (cls == Set.class)
-               return entityType.getSet(attribute.getName()).getElementType().getJavaType();
-           else if (cls == Map.class)
-               return entityType.getMap(attribute.getName()).getElementType().getJavaType();
-       }
-       return attribute.getJavaType();
-    }
-
-    private static <T> String findMappedBy(Object parent
-            , Root<T> r
-            , Attribute attribute
-            , Attribute.PersistentAttributeType annotationType
-            , Class type) {
-        String mappedBy = Reflect.getField(parent, attribute.getName())
-                .map(it -> {
-                    if (annotationType == Attribute.PersistentAttributeType.ONE_TO_MANY)
-                        return it.getAnnotation(OneToMany.class).mappedBy();
-                    else if (annotationType == Attribute.PersistentAttributeType.MANY_TO_MANY)
-                        return it.getAnnotation(ManyToMany.class).mappedBy();
-                    else if (annotationType == Attribute.PersistentAttributeType.ONE_TO_ONE)
-                        return it.getAnnotation(OneToOne.class).mappedBy();
-                    return null;
-                }).orElse(null);
-
-        Attribute.PersistentAttributeType targetAnnotation = (annotationType == Attribute.PersistentAttributeType.ONE_TO_MANY
-                ? Attribute.PersistentAttributeType.MANY_TO_ONE
-                : annotationType);
-        EntityType<T> entityType = r.getModel();
-        if (Str.isEmpty(mappedBy)) {
-            // no mapped by so we have to try to infer the attribute
-            for (Attribute attr : entityType.getAttributes()) {
-                if (attr.isAssociation()
-                        && getEntityClass(attr, entityType) == parent.getClass()
-                        && attr.getPersistentAttributeType() == targetAnnotation) {
-                    if (Str.isNotEmpty(mappedBy))
-                        throw new BiDirectionException(parent.getClass(), attribute.getName(), type
-                                , targetAnnotation.name());
-                    mappedBy = attr.getName();
-                }
-            }
-        }
-        if (Str.isEmpty(mappedBy))
-            throw new BiDirectionException(parent.getClass(), attribute.getName(), type, targetAnnotation.name());
-        return mappedBy;
-    }
-
     public static String determineDbIdName(Object o, String field) {
         return Reflect.getField(o, field).map(f -> f.isAnnotationPresent(Column.class)
                 ? f.getAnnotation(Column.class).name()
@@ -535,14 +1448,53 @@ public class QueryReader {
                 : Str.toSnake(field)).orElse(null);
     }
 
+    public static String determineDbColName(Class<?> cls, String field) {
+        return Reflect.getField(cls, field).map(f -> f.isAnnotationPresent(Column.class)
+                && Str.isNotEmpty(f.getAnnotation(Column.class).name())
+                ? f.getAnnotation(Column.class).name()
+                : Str.toSnake(field)).orElse(null);
+    }
+
+    public static String determineDbIdColName(Class<?> cls, String idName) {
+        // with @MapsId the primary key is the foreign key of the mapped association
+        Optional<Field> mapsId = Reflect.getAllFields(cls).stream()
+                .filter(it -> it.isAnnotationPresent(MapsId.class))
+                .filter(it -> Str.isEmpty(it.getAnnotation(MapsId.class).value())
+                        || it.getAnnotation(MapsId.class).value().equals(idName))
+                .findFirst();
+        if (mapsId.isPresent()) {
+            Class<?> target = mapsId.get().getType();
+            String targetId = Reflect.getAllFields(target).stream()
+                    .filter(it -> it.isAnnotationPresent(Id.class))
+                    .map(Field::getName)
+                    .findFirst().orElse(C.id);
+            return determineDbJoinColName(cls, mapsId.get().getName(), determineDbIdColName(target, targetId));
+        }
+        return determineDbColName(cls, idName);
+    }
+
+    public static String determineDbJoinColName(Class<?> cls, String field, String referencedColumn) {
+        return Reflect.getField(cls, field).map(f -> f.isAnnotationPresent(JoinColumn.class)
+                && Str.isNotEmpty(f.getAnnotation(JoinColumn.class).name())
+                ? f.getAnnotation(JoinColumn.class).name()
+                : String.format("%s_%s", Str.toSnake(field), referencedColumn)).orElse(null);
+    }
+
     public static String determineDbTableName(Object o) {
         return o.getClass().isAnnotationPresent(Table.class)
                 ? o.getClass().getAnnotation(Table.class).name()
                 : Str.toSnake(o.getClass().getSimpleName());
     }
 
+    public static String determineDbTableName(Class<?> cls) {
+        String name = cls.isAnnotationPresent(Table.class) ? cls.getAnnotation(Table.class).name() : "";
+        if (Str.isEmpty(name) && cls.isAnnotationPresent(Entity.class))
+            name = cls.getAnnotation(Entity.class).name();
+        return Str.isEmpty(name) ? Str.toSnake(cls.getSimpleName()) : name;
+    }
+
     private static <T> List<T> joinFetchQuery(List<Tuple> ids
-            , List<Order> orders
+            , List<Sortable> sorting
             , Class<T> entityClass
             , EntityManager em
             , CriteriaBuilder builder
@@ -553,28 +1505,22 @@ public class QueryReader {
         Map<String, From> joins = new HashMap<>();
         QueryState.buildFetchJoins(fetch.get(0).getName(), root, joins);
 
-        String[] idNames = idNames(root);
-        Map<String, Collection<Object>> idMap = new HashMap<>();
-        for(int i = 0; i < idNames.length; i++) {
-            int finalI = i;
-            idMap.put(idNames[i], ids.stream().map(it-> it.get(finalI)).collect(Collectors.toList()));
-        }
-        explicitIn(criteriaQuery, idMap, builder, root);
-        criteriaQuery.orderBy(orders);
+        String[] idNames = Metadata.of(em).idNames(entityClass);
+        List<Object[]> idValues = idValues(ids, idNames);
+        criteriaQuery.orderBy(sortToOrder(sorting, builder, root));
 
-        List<T> results = em.createQuery(criteriaQuery).getResultList();
+        List<T> results = explicitIn(criteriaQuery, idNames, idValues, em, builder, root);
         // fetch remaining associations one by one
-        joinFetchRemaining(results, orders, entityClass, em, builder, idMap, fetch);
+        joinFetchRemaining(results, entityClass, em, builder, idValues, fetch);
 
         return results;
     }
 
     private static void joinFetchRemaining(List<?> results
-            , List<Order> orders
             , Class<?> entityClass
             , EntityManager em
             , CriteriaBuilder builder
-            , Map<String, Collection<Object>> idMap
+            , List<Object[]> idValues
             , List<Fetch> fetch) {
         if (results.size() > 0 && fetch.size() > 0) {
             PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
@@ -588,73 +1534,264 @@ public class QueryReader {
                 Root root = criteriaQuery.from(entityClass);
                 joins.clear();
                 QueryState.buildFetchJoins(f.getName(), root, joins);
-                if (idMap == null) {
-                    String[] idNames = idNames(root);
-                    idMap = new HashMap<>();
-                    for(String id : idNames) {
-                        idMap.put(id, results.stream().map(it-> {
-                            try {
-                                return Reflect.getFieldValue(it, id);
-                            } catch (ReflectiveOperationException e) {
-                                System.out.println(e.getMessage());
-                                return null;
-                            }
-                        }).collect(Collectors.toList()));
-                    }
+                String[] idNames = Metadata.of(em).idNames(entityClass);
+                if (idValues == null) {
+                    idValues = results.stream().map(it -> idValues(it, idNames)).collect(Collectors.toList());
                 }
 
-                explicitIn(criteriaQuery, idMap, builder, root);
-                if (Objects.nonNull(orders))
-                    criteriaQuery.orderBy(orders);
-                List<Object> fetchResults = em.createQuery(criteriaQuery.distinct(true)).getResultList();
-
-                for(int i = 0; i < results.size(); i++) {
-                    try {
-                        if (!isLoaded(util, results.get(i), name))
-                            Reflect.setFieldValue(results.get(i)
-                                , name
-                                , Reflect.getFieldValue(fetchResults.get(i), name));
-                    } catch (ReflectiveOperationException e) {
-                        e.printStackTrace();
-                    }
-                }
+                List<Object> fetchResults = explicitIn(criteriaQuery, idNames, idValues, em, builder, root);
+                stitch(results.stream().filter(it -> !util.isLoaded(it, name)).collect(Collectors.toList())
+                        , fetchResults
+                        , util
+                        , idNames
+                        , name);
+            }
+        }
+    }
+
+    private static int inLimit(EntityManager em) {
+        return Metadata.of(em).getInLimit();
+    }
+
+    private static Object[] idValues(Object entity, String[] idNames) {
+        Object[] id = new Object[idNames.length];
+        for (int i = 0; i < idNames.length; i++) {
+            try {
+                id[i] = Accessor.of(entity.getClass(), idNames[i]).get(entity);
+            } catch (ReflectiveOperationException e) {
+                throw new AccessException(entity.getClass(), idNames[i], e);
             }
         }
+        return id;
+    }
+
+    private static Predicate idPredicate(List<Object[]> ids
+            , String[] idNames
+            , CriteriaBuilder builder
+            , From<?, ?> root) {
+        if (idNames.length == 1 && !root.get(idNames[0]).getJavaType().isAnnotationPresent(Embeddable.class)) {
+            return root.get(idNames[0]).in(ids.stream().map(it -> it[0]).collect(Collectors.toList()));
+        }
+        // row value IN lists are not part of the criteria api, so composite ids become (a = ? and b = ?) or ...
+        return builder.or(ids.stream().map(id -> {
+            Predicate[] predicates = new Predicate[idNames.length];
+            for (int i = 0; i < idNames.length; i++)
+                predicates[i] = builder.equal(root.get(idNames[i]), id[i]);
+            return builder.and(predicates);
+        }).toArray(Predicate[]::new));
+    }
+
+    private static <T> List<T> explicitIn(CriteriaQuery<T> criteriaQuery
+            , String[] idNames
+            , List<Object[]> ids
+            , EntityManager em
+            , CriteriaBuilder builder
+            , Root<T> root) {
+        if (ids.size() <= inLimit(em)) {
+            criteriaQuery.where(idPredicate(ids, idNames, builder, root)).distinct(true);
+            return em.createQuery(criteriaQuery).getResultList();
+        }
+        Map<List<Object>, T> merged = new HashMap<>();
+        for (List<Object[]> chunk : Lists.collate(ids, inLimit(em), inLimit(em))) {
+            criteriaQuery.where(idPredicate(chunk, idNames, builder, root)).distinct(true);
+            for (T t : em.createQuery(criteriaQuery).getResultList())
+                merged.put(Arrays.asList(idValues(t, idNames)), t);
+        }
+        // each chunk is sorted on its own so restore the order of the ids
+        return ids.stream()
+                .map(it -> merged.get(Arrays.asList(it)))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
-    private static void explicitIn(CriteriaQuery criteriaQuery
-            , Map<String, Collection<Object>> idMap
+    /**
+     * Fetch a one to many or many to many association for all parents with one query per chunk of parent ids,
+     * then partition the children by parent and apply the fetch offset and limit to each partition.
+     * @return false when the association can't be batched and should be fetched one parent at a time
+     */
+    private static <T> boolean batchFetchQuery(List<?> gathered
+            , EntityManager em
             , CriteriaBuilder builder
-            , Root root) {
-        for(String idName : idMap.keySet()) {
-            List<Predicate> idPredicates = new ArrayList<>();
-            for (Object id : idMap.get(idName)) {
-                idPredicates.add(builder.equal(root.get(idName), id));
+            , Fetch fetch
+            , boolean window) {
+        Metadata metadata = Metadata.of(em);
+        Metadata.Entity entity = metadata.entity(gathered.get(0).getClass());
+        Attribute attribute = entity.getAttribute(fetch.getName());
+        Attribute.PersistentAttributeType attributeType = attribute.getPersistentAttributeType();
+        if (attributeType != Attribute.PersistentAttributeType.ONE_TO_MANY
+                && attributeType != Attribute.PersistentAttributeType.MANY_TO_MANY)
+            return false;
+
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        String[] idNames = entity.getIdNames();
+        Map<List<Object>, List<Object>> parents = new LinkedHashMap<>();
+        for (Object parent : gathered) {
+            if (!isLoaded(util, parent, fetch.getName()))
+                parents.computeIfAbsent(Arrays.asList(idValues(parent, idNames)), k -> new ArrayList<>()).add(parent);
+        }
+        if (parents.isEmpty())
+            return true;
+
+        Class<T> type = (Class<T>) entity.getAttributeClass(fetch.getName());
+        CriteriaQuery<Tuple> batchQuery = builder.createTupleQuery();
+        Root<T> r = batchQuery.from(type);
+        String mappedBy = entity.getMappedBy(fetch.getName());
+
+        if (window && attributeType == Attribute.PersistentAttributeType.ONE_TO_MANY && idNames.length == 1
+                && metadata.idNames(type).length == 1 && fetch.getLimit() > 0) {
+            Map<List<Object>, List<Object>> children = windowFetchQuery(parents.keySet(), metadata.entity(type)
+                    , mappedBy, entity.getIdColumn(idNames[0]), em, fetch);
+            if (Objects.nonNull(children)) {
+                assignPartitions(parents, children, fetch, false);
+                return true;
+            }
+        }
+
+        From from = r.join(mappedBy);
+
+        List<Selection<?>> selections = new ArrayList<>();
+        selections.add(r);
+        for (String idName : idNames)
+            selections.add(from.get(idName));
+        batchQuery.multiselect(selections.toArray(new Selection[0])).orderBy(sortToOrder(fetch.getSorting(), builder, r));
+
+        Map<List<Object>, List<Object>> children = new HashMap<>();
+        List<Object[]> ids = parents.keySet().stream().map(List::toArray).collect(Collectors.toList());
+        for (List<Object[]> chunk : Lists.collate(ids, inLimit(em), inLimit(em))) {
+            batchQuery.where(idPredicate(chunk, idNames, builder, from));
+            for (Tuple tuple : em.createQuery(batchQuery).getResultList()) {
+                List<Object> parentId = new ArrayList<>(idNames.length);
+                for (int i = 1; i <= idNames.length; i++)
+                    parentId.add(tuple.get(i));
+                children.computeIfAbsent(parentId, k -> new ArrayList<>()).add(tuple.get(0));
+            }
+        }
+
+        assignPartitions(parents, children, fetch, true);
+        return true;
+    }
+
+    private static void assignPartitions(Map<List<Object>, List<Object>> parents
+            , Map<List<Object>, List<Object>> children
+            , Fetch fetch
+            , boolean slice) {
+        for (Map.Entry<List<Object>, List<Object>> entry : parents.entrySet()) {
+            List<Object> page = children.getOrDefault(entry.getKey(), new ArrayList<>());
+            if (slice) {
+                int start = (int) Math.min(fetch.getOffset(), page.size());
+                int end = fetch.getLimit() > 0
+                        ? (int) Math.min(start + (long) fetch.getLimit(), page.size())
+                        : page.size();
+                page = page.subList(start, end);
+            }
+            for (Object parent : entry.getValue()) {
+                try {
+                    Reflect.setFieldValue(parent, fetch.getName(), new ArrayList<>(page));
+                } catch (ReflectiveOperationException e) {
+                    throw new AccessException(parent.getClass(), fetch.getName(), e);
+                }
+            }
+        }
+    }
+
+    private static final Map<EntityManagerFactory, Map<String, Boolean>> windowSupport =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Read the [offset:limit] slice of a one to many collection for every parent with one native statement:
+     * SELECT * FROM (SELECT c.*, ROW_NUMBER() OVER (PARTITION BY fk ORDER BY ...) ...) WHERE row number in slice
+     * Window functions are not part of JPQL, so table and column names are derived from the mapping annotations
+     * with the default naming rules. Each path is probed once per factory on a separate entity manager,
+     * so an unsupported dialect or unexpected names can't spoil the caller's transaction.
+     * Sort names must be attributes of the child entity, an unknown name is a BadQueryException.
+     * @return The children partitioned by parent id or null when the statement isn't supported
+     */
+    private static Map<List<Object>, List<Object>> windowFetchQuery(Collection<List<Object>> parentIds
+            , Metadata.Entity entity
+            , String mappedBy
+            , String parentIdColumn
+            , EntityManager em
+            , Fetch fetch) {
+        Class<?> type = entity.getJavaType();
+        for (Sortable sort : fetch.getSorting()) {
+            // paths through associations are sorted by the fetch query which can join them
+            if (sort.getName().contains("."))
+                return null;
+            if (!entity.hasAttribute(sort.getName()))
+                throw new BadQueryException(
+                        String.format("%s has no attribute %s", type.getSimpleName(), sort.getName()));
+            if (entity.getAttribute(sort.getName()).getPersistentAttributeType()
+                    != Attribute.PersistentAttributeType.BASIC)
+                return null;
+        }
+        String table = entity.getTable();
+        String fk = entity.getJoinColumn(mappedBy, parentIdColumn);
+        String id = String.format("c.%s", entity.getIdColumn(entity.getIdNames()[0]));
+        String order = fetch.getSorting().isEmpty()
+                ? id
+                : fetch.getSorting().stream()
+                .map(it -> String.format("c.%s %s", entity.getColumn(it.getName()), it.getDirection()))
+                .collect(Collectors.joining(", "));
+        String window = "SELECT c.*, ROW_NUMBER() OVER (PARTITION BY c.%s ORDER BY %s) AS row_num_ FROM %s c";
+        String ranked = String.format(window, fk, order, table);
+
+        // the statement only differs by its sort columns, which are attributes of the entity,
+        // so one probe ordered by the id decides for every sorting of the path
+        EntityManagerFactory factory = em.getEntityManagerFactory();
+        String key = String.format("%s.%s", type.getName(), mappedBy);
+        Boolean supported = windowSupport.computeIfAbsent(factory, k -> new ConcurrentHashMap<>()).get(key);
+        if (supported == null) {
+            EntityManager probe = factory.createEntityManager();
+            try {
+                probe.createNativeQuery(String.format("SELECT COUNT(*) FROM (%s WHERE 1 = 0) ranked"
+                        , String.format(window, fk, id, table))).getSingleResult();
+                supported = true;
+            } catch (RuntimeException e) {
+                supported = false;
+            } finally {
+                probe.close();
+            }
+            windowSupport.get(factory).put(key, supported);
+        }
+        if (!supported)
+            return null;
+
+        String sql = String.format("SELECT * FROM (%s WHERE c.%s IN (:ids)) ranked WHERE row_num_ > %d AND row_num_ <= %d ORDER BY %s, row_num_"
+                , ranked, fk, fetch.getOffset(), fetch.getOffset() + fetch.getLimit(), fk);
+        Query query = em.createNativeQuery(sql, type);
+        PersistenceUnitUtil util = factory.getPersistenceUnitUtil();
+        Map<List<Object>, List<Object>> children = new HashMap<>();
+        List<Object> ids = parentIds.stream().map(it -> it.get(0)).collect(Collectors.toList());
+        for (List<Object> chunk : Lists.collate(ids, inLimit(em), inLimit(em))) {
+            for (Object child : query.setParameter("ids", chunk).getResultList()) {
+                try {
+                    Object parent = Reflect.getFieldValue(child, mappedBy);
+                    children.computeIfAbsent(Lists.of(util.getIdentifier(parent)), k -> new ArrayList<>()).add(child);
+                } catch (ReflectiveOperationException e) {
+                    throw new AccessException(child.getClass(), mappedBy, e);
+                }
             }
-            criteriaQuery.where(builder.or(idPredicates.toArray(new Predicate[0]))).distinct(true);
         }
+        return children;
     }
 
     private static <T> Object lazyFetchQuery(Object parent
-            , Root root
             , EntityManager em
             , CriteriaBuilder builder
             , Fetch fetch) throws BiDirectionException {
-        Attribute attribute = root.getModel().getAttribute(fetch.getName());
+        Metadata metadata = Metadata.of(em);
+        Metadata.Entity entity = metadata.entity(parent.getClass());
+        Attribute attribute = entity.hasAttribute(fetch.getName()) ? entity.getAttribute(fetch.getName()) : null;
         if (Objects.nonNull(attribute)) {
             PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
             // is this a basic @ElementCollection with something like @CollectionTable(name = "entity1_strings")
             // private List<String> strings;
             if (attribute.isCollection() && !attribute.isAssociation()) {
-                Optional<Field> collectionField = Reflect.getField(parent, attribute.getName());
-                if (collectionField.isPresent()
-                        && collectionField.get().isAnnotationPresent(ElementCollection.class)
-                        && collectionField.get().isAnnotationPresent(CollectionTable.class)) {
-                    CollectionTable collectionTable = collectionField.get().getAnnotation(CollectionTable.class);
-                    String table = collectionTable.name();
-                    String[] joinColumns = Arrays.stream(collectionTable.joinColumns())
-                            .map(JoinColumn::name).toArray(String[]::new);
-                    Map<String, String> idNames = Arrays.stream(idNames(root))
+                Optional<Metadata.ElementCollection> collection = entity.getElementCollection(attribute.getName());
+                if (collection.isPresent()) {
+                    String table = collection.get().getTable();
+                    String[] joinColumns = collection.get().getJoinColumns();
+                    Map<String, String> idNames = Arrays.stream(entity.getIdNames())
                             .collect(Collectors.toMap(it -> determineDbIdName(parent, it), it -> it));
                     for(String joinColumn : joinColumns) idNames.remove(joinColumn);
 
@@ -663,7 +1800,7 @@ public class QueryReader {
                     String where = ids.stream().map(it -> String.format("%s=:%s", it, it))
                             .collect(Collectors.joining(" AND "));
                     // Yes this is raw sql however it is so basic that the statement will be universal.
-                    String col = determineDbColName(parent, attribute.getName());
+                    String col = collection.get().getColumn();
                     String select = isMap ? String.format("%s_key, %s", col, col) : col;
                     String order = fetch.getSorting().isEmpty()
                             ? ""
@@ -695,7 +1832,7 @@ public class QueryReader {
             }
 
             // the type of the object being fetched.
-            Class<T> type = getEntityClass(attribute, root.getModel());
+            Class<T> type = (Class<T>) entity.getAttributeClass(attribute.getName());
             // identify the association type (OneToMany, ManyToMany, OneToOne)
             Attribute.PersistentAttributeType attributeType = attribute.getPersistentAttributeType();
             if (attributeType == Attribute.PersistentAttributeType.ONE_TO_ONE) {
@@ -717,9 +1854,9 @@ public class QueryReader {
             Root<T> r = lazyQuery.from(type);
 
             // now we have to find the bi directional association
-            String mappedBy = findMappedBy(parent, r, attribute, attributeType, type);
+            String mappedBy = entity.getMappedBy(attribute.getName());
 
-            String[] idName = idNames(root);
+            String[] idName = entity.getIdNames();
             Object identifier = util.getIdentifier(parent);
             if (attributeType == Attribute.PersistentAttributeType.ONE_TO_MANY) {
                 if (idName.length > 1) {
@@ -775,6 +1912,15 @@ public class QueryReader {
     static class Expression<T> {
         static final String NOT = "not_";
         static final String PROP = "_prop";
+        static final Pattern FUNCTION = Pattern.compile("^[a-zA-Z_0-9]+\\{.*}$");
+
+        static boolean isFunction(String s) {
+            return FUNCTION.matcher(s).matches();
+        }
+
+        static boolean isQuoted(String s) {
+            return s.length() > 1 && s.charAt(0) == '\'' && s.charAt(s.length() - 1) == '\'';
+        }
 
         String key;
         String s;
@@ -840,26 +1986,78 @@ public class QueryReader {
             }
             s = value.toString();
 
-            String funcRegex = "^[a-zA-Z_0-9]+\\{.*}$";
             // check for a left function
-            if (key.matches(funcRegex)) {
+            if (isFunction(key)) {
                 String func = key.substring(0, key.indexOf('{'));
                 f1 = toFunction(func);
                 key = key.substring(key.indexOf('{') + 1, key.indexOf('}'));
             }
             // check for a quote string literal
-            if (s.matches("^'.*'$")) {
+            if (isQuoted(s)) {
                 value = s.substring(1, s.length() - 1);
                 s = value.toString();
             }
             // check for a function
-            else if (s.matches(funcRegex)) {
+            else if (isFunction(s)) {
                 String func = s.substring(0, s.indexOf('{'));
                 f2 = toFunction(func);
                 s = s.substring(s.indexOf('{') + 1, s.indexOf('}'));
             }
         }
 
+        // a structured expression holding the value as given, so it is never formatted and read back
+        Expression(String key, Operator operator, Object value, Opt... opts) {
+            this.key = key;
+            this.operator = operator;
+            this.value = value;
+            this.s = Objects.isNull(value) ? Str.EMPTY : value.toString();
+            negate = Arrays.stream(opts).anyMatch(it -> it == Opt.not);
+            prop = Arrays.stream(opts).anyMatch(it -> it == Opt.prop);
+            if (isFunction(key)) {
+                f1 = toFunction(key.substring(0, key.indexOf('{')));
+                this.key = key.substring(key.indexOf('{') + 1, key.indexOf('}'));
+            }
+            if (prop && isFunction(s)) {
+                f2 = toFunction(s.substring(0, s.indexOf('{')));
+                s = s.substring(s.indexOf('{') + 1, s.indexOf('}'));
+            }
+        }
+
+        protected Expression(Expression<?> expression) {
+            key = expression.key;
+            s = expression.s;
+            value = expression.value;
+            operator = expression.operator;
+            negate = expression.negate;
+            prop = expression.prop;
+            f1 = expression.f1;
+            f2 = expression.f2;
+        }
+
+        Expression<T> copy() {
+            return new Expression<>(this);
+        }
+
+        // bind a literal value from another query with the same shape
+        void bind(Object literal) {
+            value = literal;
+            s = value.toString();
+            if (isQuoted(s)) {
+                value = s.substring(1, s.length() - 1);
+                s = value.toString();
+            }
+        }
+
+        // read a value for the path the same way a query value is read
+        static Object coerce(String key, Object value, Path<?> path) {
+            if (value == null || path.getJavaType().isInstance(value))
+                return value;
+            Expression expression = new Expression<>(key + ":");
+            expression.bind(value);
+            expression.setValue(path);
+            return expression.value;
+        }
+
         protected Function toFunction(String func) {
              if (Function.isValid(func))
                  return Function.valueOf(func);
@@ -868,7 +2066,8 @@ public class QueryReader {
         }
 
         protected void setValue(Path<T> path) {
-            if (value instanceof Collection)
+            // only strings are read, a typed value is used as is
+            if (value instanceof Collection || (!(value instanceof String) && path.getJavaType().isInstance(value)))
                 return;
             if (Str.EMPTY.equals(s))
                 value = null;
@@ -904,24 +2103,7 @@ public class QueryReader {
         }
 
         public javax.persistence.criteria.Expression applyFunction(Function function, Path path, CriteriaBuilder cb) {
-            if (function == Function.count) {
-                return cb.count(path);
-            } else if (function == Function.avg) {
-                return cb.avg(path);
-            } else if (function == Function.sum) {
-                return cb.sum(path);
-            } else if (function == Function.max) {
-                return cb.max(path);
-            } else if (function == Function.min) {
-                return cb.min(path);
-            } else if (function == Function.greatest) {
-                return cb.greatest(path);
-            } else if (function == Function.least) {
-                return cb.least(path);
-            } else if (function == Function.count_distinct) {
-                return cb.countDistinct(path);
-            }
-            return cb.count(path);
+            return QueryReader.applyFunction(function, path, cb);
         }
 
         protected From findMapJoin(String property, From from, QueryState<T> state, boolean l) {
@@ -943,7 +2125,7 @@ public class QueryReader {
         }
 
         protected From findJoin(String property, From from, QueryState<T> state, boolean l) {
-            Optional<String> attribute = getEntityIdName(property, state.root, state.cb);
+            Optional<String> attribute = state.metadata.associationId(state.root.getJavaType(), property);
             if (attribute.isPresent()) {
                 property = String.format("%s.%s", property, attribute.get());
             }
@@ -982,29 +2164,6 @@ public class QueryReader {
             return from;
         }
 
-        protected Optional<String> getEntityIdName(String path, Root<?> root, CriteriaBuilder cb) {
-            if (Str.isBlank(path)) return Optional.empty();
-            String[] names = path.split("\\.");
-            Optional<Attribute<?, ?>> attribute = Optional.empty();
-
-            for(String name : names) {
-                attribute = (Optional<Attribute<?, ?>>)
-                        root.getModel().getAttributes().stream()
-                                .filter(Attribute::isAssociation)
-                                .filter(it -> it.getName().equals(name))
-                                .findFirst();
-                if (attribute.isPresent()) {
-                    Class entityType = attribute.get().isCollection()
-                            ? ((PluralAttribute) attribute.get()).getBindableJavaType()
-                            : attribute.get().getJavaType();
-                    root = cb.createQuery(entityType).from(entityType);
-                }
-            }
-            return attribute.isPresent()
-                    ? Optional.of(idNames(root)[0])
-                    : Optional.empty();
-        }
-
         protected Path assignPath(From from, String prop) {
             if (from instanceof MapJoin){
                 MapJoin<?, ?, ?> mapJoin = ((MapJoin<?, ?, ?>) from);
@@ -1017,13 +2176,86 @@ public class QueryReader {
             }
         }
 
+        private ParameterExpression parameter(QueryState<?> state
+                , Class<?> type
+                , Path<?> path
+                , java.util.function.Function<Expression<?>, Object> value) {
+            ParameterExpression parameter = state.cb.parameter(type);
+            state.bindings.add(new Binding(parameter, this, path, value));
+            return parameter;
+        }
+
+        private static List<Object> coerce(Expression<?> expression, Path<?> path) {
+            return ((Collection<?>) expression.value).stream()
+                    .map(it -> coerce(expression.key, it, path))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return The predicate comparing the path to a parameter, null when the value has to be inlined
+         */
+        protected Predicate parameter(QueryState<?> state, Path path, CriteriaBuilder cb) {
+            Class<?> type = path.getJavaType();
+            switch (operator) {
+                case eq:
+                case lt:
+                case lte:
+                case gt:
+                case gte:
+                    if (!type.isInstance(value) || (operator != Operator.eq && !(value instanceof Comparable)))
+                        return null;
+                    ParameterExpression parameter = parameter(state, type, path, it -> it.value);
+                    switch (operator) {
+                        case lt: return cb.lessThan(path, parameter);
+                        case lte: return cb.lessThanOrEqualTo(path, parameter);
+                        case gt: return cb.greaterThan(path, parameter);
+                        case gte: return cb.greaterThanOrEqualTo(path, parameter);
+                        default: return cb.equal(path, parameter);
+                    }
+                case in:
+                    if (!(value instanceof Collection) || ((Collection<?>) value).isEmpty()
+                            || !coerce(this, path).stream().allMatch(type::isInstance))
+                        return null;
+                    return path.in(parameter(state, Collection.class, path, it -> coerce(it, path)));
+                case contains:
+                case startswith:
+                case endswith:
+                    if (type != String.class)
+                        return null;
+                    return cb.like(path, parameter(state, String.class, path, it -> like(it.s)));
+                case icontains:
+                case istartswith:
+                case iendswith:
+                    if (type != String.class)
+                        return null;
+                    return cb.like(cb.upper(path)
+                            , parameter(state, String.class, path, it -> like(it.s.toUpperCase())));
+                default:
+                    return null;
+            }
+        }
+
+        // the like pattern of the operator
+        private String like(String s) {
+            switch (operator) {
+                case startswith:
+                case istartswith:
+                    return String.format("%s%%", s);
+                case endswith:
+                case iendswith:
+                    return String.format("%%%s", s);
+                default:
+                    return String.format("%%%s%%", s);
+            }
+        }
+
         public Predicate apply(QueryState state) {
             Root root = state.root;
             CriteriaBuilder cb = state.cb;
             Predicate predicate;
             try {
                 if (key == null || key.isEmpty()) {
-                    key = idNames(root)[0];
+                    key = state.metadata.idNames(root.getJavaType())[0];
                 }
                 From l = findJoin(key, state.root, state, true);
                 From r = prop ? findJoin(s, state.root, state, false) : root;
@@ -1033,6 +2265,11 @@ public class QueryReader {
                     setValue(p1);
 
                 p2 = prop ? assignPath(r, s) : null;
+                if (Objects.nonNull(state.bindings) && !prop && f1 == null) {
+                    Predicate parameter = parameter(state, p1, cb);
+                    if (Objects.nonNull(parameter))
+                        return negate ? cb.not(parameter) : parameter;
+                }
                 javax.persistence.criteria.Expression exp1 = f1 == null ? p1 : applyFunction(f1, p1, cb);
                 javax.persistence.criteria.Expression exp2 = f2 == null ? p2 : applyFunction(f2, p2, cb);
 
@@ -1175,6 +2412,15 @@ public class QueryReader {
         public int at() { return i; }
     }
 
+    /**
+     * An entity attribute couldn't be read or written while fetching, so the results would be incomplete
+     */
+    public static class AccessException extends RuntimeException {
+        public AccessException(Class<?> type, String name, Throwable cause) {
+            super(String.format("can't access %s.%s: %s", type.getSimpleName(), name, cause.getMessage()), cause);
+        }
+    }
+
     public static class BiDirectionException extends RuntimeException {
         public BiDirectionException(Class parent, String field, Class type, String persistenceType) {
            super(String.format("lazy fetching requires a defined bi-directional association using " +
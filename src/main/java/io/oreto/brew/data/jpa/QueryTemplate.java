@@ -0,0 +1,589 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.map.Cache;
+import io.oreto.brew.str.Str;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Predicate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * A compiled query string. The q string is tokenized once into a tree of expressions whose literal values
+ * are held in slots, so queries with the same shape but different values share one template.
+ * Templates are immutable and every apply works on fresh copies of the expressions.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class QueryTemplate {
+    static final char QUOTE = '"';
+    static final char SEPARATOR = '\u001F';
+    static final String SLOT = "?";
+
+    private static final Cache<String, QueryTemplate> cache = Cache.of();
+    // the bound queries by query string, so a repeated query isn't tokenized again
+    private static final Cache<String, Bound> queries = Cache.of();
+
+    public static Cache<String, QueryTemplate> cache() {
+        return cache;
+    }
+
+    /**
+     * @return The cache of the bound queries by entity and query string, in front of the template cache
+     */
+    public static Cache<String, Bound> queries() {
+        return queries;
+    }
+
+    /**
+     * Find or compile the template for the query shape and bind the literal values of this query to it.
+     * A query string seen before is bound already and skips tokenizing.
+     * @param entityClass The entity being queried
+     * @param q The query string
+     * @return The bound query ready to apply to a criteria query
+     */
+    public static Bound of(Class<?> entityClass, String q) {
+        return queries.get(Str.of(entityClass.getName()).add(SEPARATOR).add(Objects.toString(q, "")).toString()
+                , k -> bind(entityClass, q));
+    }
+
+    private static Bound bind(Class<?> entityClass, String q) {
+        List<Token> tokens = tokenize(q);
+        Str shape = Str.of(entityClass.getName());
+        List<Object> literals = new ArrayList<>();
+        for (Token token : tokens) {
+            shape.add(SEPARATOR).add(token.shape());
+            if (token.hasLiteral())
+                literals.add(token.literal);
+        }
+        QueryTemplate template = cache.get(shape.toString(), k -> new QueryTemplate(k, tokens, literals.size()));
+        shape.add(SEPARATOR);
+        literals.forEach(it -> encode(shape, it));
+        return new Bound(q, shape.toString(), template, literals.toArray());
+    }
+
+    // length prefixed so literals containing commas, brackets or separators can't run into each other
+    private static void encode(Str key, Object literal) {
+        if (literal == null) {
+            key.add("~");
+        } else if (literal instanceof Collection) {
+            Collection<?> list = (Collection<?>) literal;
+            key.add("L").add(String.valueOf(list.size())).add(":");
+            list.forEach(it -> encode(key, it));
+        } else {
+            String s = literal.toString();
+            key.add("S").add(String.valueOf(s.length())).add(":").add(s);
+        }
+    }
+
+    /**
+     * Bind an expression tree built without a query string, the values are already typed so there are no slots
+     * @param q The query string of the same tree, used for logging and as the key
+     */
+    static Bound of(Class<?> entityClass, String q, Builder builder) {
+        String key = Str.of(entityClass.getName()).add(SEPARATOR).add(q).toString();
+        return new Bound(q, key, new QueryTemplate(key, builder.root()), new Object[0]);
+    }
+
+    static List<Token> tokenize(String q) {
+        return q == null || q.trim().isEmpty() ? new ArrayList<>() : new Lexer(q).tokenize();
+    }
+
+    private final String shape;
+    private final Node root;
+    private final int slots;
+
+    protected QueryTemplate(String shape, List<Token> tokens, int slots) {
+        this.shape = shape;
+        this.slots = slots;
+        this.root = new Parser(tokens).parse();
+    }
+
+    protected QueryTemplate(String shape, Node root) {
+        this.shape = shape;
+        this.slots = 0;
+        this.root = root;
+    }
+
+    /**
+     * @return The entity and the query with its literal values replaced by slots
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return The attribute paths the query compares, on either side of a _prop operator
+     */
+    public Set<String> getPaths() {
+        Set<String> paths = new LinkedHashSet<>();
+        paths(root, paths);
+        return paths;
+    }
+
+    private static void paths(Node node, Set<String> paths) {
+        if (node instanceof Branch) {
+            paths(((Branch) node).left, paths);
+            paths(((Branch) node).right, paths);
+        } else if (node instanceof Term) {
+            QueryReader.Expression<?> expression = ((Term) node).expression;
+            paths.add(expression.key);
+            if (expression.prop)
+                paths.add(expression.s);
+        }
+    }
+
+    public static class Bound {
+        private final String q;
+        private final String key;
+        private final QueryTemplate template;
+        private final Object[] literals;
+
+        Bound(String q, String key, QueryTemplate template, Object[] literals) {
+            this.q = q;
+            this.key = key;
+            this.template = template;
+            this.literals = literals;
+        }
+
+        public String getQ() {
+            return q;
+        }
+
+        /**
+         * @return The entity, query shape and values, the same for every spelling of the same query
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public QueryTemplate getTemplate() {
+            return template;
+        }
+
+        Object[] getLiterals() {
+            return literals;
+        }
+
+        public <T> QueryReader.Predicates apply(QueryReader.QueryState<T> state) {
+            QueryReader.Predicates predicates = new QueryReader.Predicates();
+            if (Objects.nonNull(template.root)) {
+                List<Predicate> conditions = new ArrayList<>();
+                List<Predicate> rows = new ArrayList<>();
+                List<Predicate> groups = new ArrayList<>();
+                boolean having = conjoin(template.root, state, predicates, conditions, rows, groups);
+                predicates.where = conditions.size() == 1
+                        ? conditions.get(0)
+                        : state.cb.and(conditions.toArray(new Predicate[0]));
+                predicates.having = having;
+                predicates.rows = and(rows, state.cb);
+                predicates.groups = and(groups, state.cb);
+            }
+            predicates.bindings = state.bindings;
+            return predicates;
+        }
+
+        // apply each condition of the top level and on its own, so plain ones can filter rows and aggregate ones groups
+        private <T> boolean conjoin(Node node
+                , QueryReader.QueryState<T> state
+                , QueryReader.Predicates predicates
+                , List<Predicate> conditions
+                , List<Predicate> rows
+                , List<Predicate> groups) {
+            if (node instanceof Branch
+                    && QueryReader.Logical.Operator.and.name().equals(((Branch) node).operator)) {
+                boolean left = conjoin(((Branch) node).left, state, predicates, conditions, rows, groups);
+                boolean right = conjoin(((Branch) node).right, state, predicates, conditions, rows, groups);
+                return left || right;
+            }
+            predicates.having = false;
+            predicates.plain = false;
+            Predicate p = node.apply(state, literals, predicates);
+            conditions.add(p);
+            if (predicates.having) {
+                groups.add(p);
+                predicates.mixed = predicates.mixed || predicates.plain;
+            } else
+                rows.add(p);
+            return predicates.having;
+        }
+
+        private static Predicate and(List<Predicate> predicates, CriteriaBuilder builder) {
+            if (predicates.isEmpty())
+                return null;
+            return predicates.size() == 1 ? predicates.get(0) : builder.and(predicates.toArray(new Predicate[0]));
+        }
+    }
+
+    static class Token {
+        enum Type {
+            expression, logical, open, close
+        }
+
+        static Token open(int at) { return new Token(Type.open, "(", null, at); }
+        static Token close(int at) { return new Token(Type.close, ")", null, at); }
+        static Token logical(String op, int at) { return new Token(Type.logical, op, null, at); }
+        static Token expression(String expr, List<Object> list, int at) {
+            return new Token(Type.expression, expr, list, at);
+        }
+
+        final Type type;
+        final String text;
+        final List<Object> list;
+        final int at;
+        String head;
+        Object literal;
+
+        Token(Type type, String text, List<Object> list, int at) {
+            this.type = type;
+            this.text = text;
+            this.list = list;
+            this.at = at;
+            if (type == Type.expression)
+                split();
+        }
+
+        // separate the literal value from the rest of the expression the same way Expression reads it
+        private void split() {
+            if (Objects.nonNull(list)) {
+                head = text;
+                literal = list;
+                return;
+            }
+            int colon = text.indexOf(':');
+            if (colon < 0)
+                return;
+            String key = text.substring(0, colon).trim();
+            String accessor = key + "::";
+            String value;
+            if (text.startsWith(accessor)) {
+                String rest = text.substring(accessor.length());
+                int end = rest.indexOf(':');
+                String rawOp = (end < 0 ? rest : rest.substring(0, end)).trim();
+                if (rawOp.endsWith(QueryReader.Expression.PROP))
+                    return;
+                int start = text.indexOf(accessor + rawOp) + (accessor + rawOp).length();
+                value = text.substring(start).trim();
+                value = value.startsWith(":") ? value.substring(1) : "";
+            } else {
+                value = text.substring(colon + 1);
+            }
+            if (QueryReader.Expression.isFunction(value))
+                return;
+            head = text.substring(0, text.length() - value.length());
+            literal = value;
+        }
+
+        boolean hasLiteral() {
+            return Objects.nonNull(head);
+        }
+
+        String shape() {
+            if (type == Type.expression && hasLiteral())
+                return Objects.nonNull(list) ? head + "[" + SLOT + "]" : head + SLOT;
+            return type.name() + ":" + text;
+        }
+    }
+
+    private static class Lexer {
+        final String q;
+        final int length;
+        final Str str = Str.empty();
+        final List<Token> tokens = new ArrayList<>();
+        boolean quoted = false;
+        boolean escaped = false;
+        boolean collecting = false;
+        List<Object> list;
+        String tmp;
+        int i = 0;
+
+        Lexer(String q) {
+            this.q = q;
+            this.length = q.length();
+        }
+
+        List<Token> tokenize() {
+            for (; i < length; i++) {
+                char c = q.charAt(i);
+
+                if (c == QUOTE) {
+                    if (escaped) {
+                        str.add(c);
+                        escaped = false;
+                    } else {
+                        quoted = !quoted;
+                    }
+                    checkFinal();
+                    continue;
+                } else if (quoted) {
+                    if (c == '\\' && !escaped) {
+                        escaped = true;
+                    } else {
+                        str.add(c);
+                    }
+                    continue;
+                } else if (c == '\\') {
+                    escaped = true;
+                    continue;
+                } else if (collecting) {
+                    if (c == ']') {
+                        collect();
+                        collecting = false;
+                        checkFinal();
+                    } else {
+                        if (c == ',')
+                            collect();
+                        else
+                            str.add(c);
+                    }
+                    continue;
+                } else if (c == '[') {
+                    collecting = true;
+                    list = new ArrayList<>();
+                    tmp = getString();
+                    continue;
+                }
+
+                switch (c) {
+                    case '(':
+                        tokens.add(Token.open(i));
+                        break;
+                    case ')':
+                        flush(false);
+                        tokens.add(Token.close(i));
+                        break;
+                    case ' ':
+                        flush(true);
+                        break;
+                    default:
+                        str.add(c);
+                        checkFinal();
+                }
+            }
+            return tokens;
+        }
+
+        String getString() {
+            String s = str.trim().toString();
+            str.delete();
+            return s;
+        }
+
+        void collect() {
+            if (str.trim().isInt()) {
+                list.add(str.toInteger().orElse(0));
+            } else if (str.isNum()) {
+                list.add(str.toDouble().orElse(0.0));
+            } else {
+                if (str.startsWith("'") && str.endsWith("'"))
+                    str.trim("'");
+                list.add(str.toString());
+            }
+            str.delete();
+        }
+
+        void flush(boolean logical) {
+            String s = getString();
+            if (logical && !s.contains(":") && QueryReader.Logical.isValid(s)) {
+                tokens.add(Token.logical(s, i));
+            } else if (s.length() > 0) {
+                tokens.add(Token.expression(s, null, i));
+            } else if (Objects.nonNull(list)) {
+                tokens.add(Token.expression(tmp, list, i));
+                list = null;
+                tmp = null;
+            }
+        }
+
+        void checkFinal() {
+            if (i == length - 1)
+                flush(false);
+        }
+    }
+
+    private static class Parser {
+        final List<Token> tokens;
+        final Stack<String> logical = new Stack<>();
+        int groups = 0;
+        int slot = 0;
+        int i = 0;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parse() {
+            Node where = null;
+            for (; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                switch (token.type) {
+                    case open:
+                        groups++;
+                        i++;
+                        if (logical.size() > 0) {
+                            Node group = parse();
+                            where = where == null ? group : new Branch(logical.pop(), where, group);
+                        } else {
+                            where = parse();
+                        }
+                        break;
+                    case close:
+                        if (groups == 0)
+                            throw new QueryReader.BadQueryException("no matching opening paren '('", token.at);
+                        groups--;
+                        return where;
+                    case logical:
+                        logical.push(token.text);
+                        break;
+                    case expression:
+                        Term term = new Term(token, token.hasLiteral() ? slot++ : -1);
+                        where = logical.isEmpty() || where == null
+                                ? term
+                                : new Branch(logical.pop(), where, term);
+                        break;
+                }
+            }
+            if (groups > 0)
+                throw new QueryReader.BadQueryException("no matching closing paren ')'"
+                        , tokens.get(tokens.size() - 1).at);
+            return where;
+        }
+    }
+
+    /**
+     * Builds the expression tree directly, combining terms and groups left to right the same way the parser does
+     */
+    static class Builder {
+        private static class Group {
+            final String operator;
+            Node where;
+
+            Group(String operator) {
+                this.operator = operator;
+            }
+        }
+
+        private final Stack<Group> groups = new Stack<>();
+        private boolean or;
+
+        Builder() {
+            groups.push(new Group(null));
+        }
+
+        private String logical() {
+            return (or ? QueryReader.Logical.Operator.or : QueryReader.Logical.Operator.and).name();
+        }
+
+        private void add(Group group, Node node, String operator) {
+            group.where = group.where == null ? node : new Branch(operator, group.where, node);
+        }
+
+        Builder add(QueryReader.Expression<?> expression) {
+            add(groups.peek(), new Term(expression), logical());
+            return this;
+        }
+
+        Builder or() {
+            or = true;
+            return this;
+        }
+
+        Builder endOr() {
+            or = false;
+            return this;
+        }
+
+        Builder group() {
+            groups.push(new Group(logical()));
+            return this;
+        }
+
+        Builder endGroup() {
+            if (groups.size() == 1)
+                throw new QueryReader.BadQueryException("no matching opening group");
+            Group group = groups.pop();
+            if (Objects.nonNull(group.where))
+                add(groups.peek(), group.where, group.operator);
+            return this;
+        }
+
+        Node root() {
+            if (groups.size() > 1)
+                throw new QueryReader.BadQueryException("no matching end of group");
+            return groups.peek().where;
+        }
+    }
+
+    abstract static class Node {
+        abstract <T> Predicate apply(QueryReader.QueryState<T> state
+                , Object[] literals
+                , QueryReader.Predicates predicates);
+    }
+
+    static class Term extends Node {
+        final QueryReader.Expression<?> expression;
+        final int slot;
+
+        Term(QueryReader.Expression<?> expression) {
+            this.expression = expression;
+            this.slot = -1;
+        }
+
+        Term(Token token, int slot) {
+            this.expression = Objects.isNull(token.list)
+                    ? new QueryReader.Expression<>(token.text)
+                    : new QueryReader.Expression<>(token.text, token.list);
+            this.slot = slot;
+        }
+
+        @Override
+        <T> Predicate apply(QueryReader.QueryState<T> state, Object[] literals, QueryReader.Predicates predicates) {
+            QueryReader.Expression<T> expression = (QueryReader.Expression<T>) this.expression.copy();
+            if (slot >= 0)
+                expression.bind(literals[slot]);
+            int bound = Objects.isNull(state.bindings) ? 0 : state.bindings.size();
+            Predicate p = expression.apply(state);
+            // parameters of this term take their value from its slot when another query of the shape runs
+            if (Objects.nonNull(state.bindings))
+                state.bindings.subList(bound, state.bindings.size()).forEach(it -> it.slot = slot);
+
+            if (expression.isAggregate()) {
+                predicates.having = true;
+            } else {
+                predicates.plain = true;
+                if (Objects.nonNull(expression.p1))
+                    predicates.grouping.add(expression.p1);
+                if (Objects.nonNull(expression.p2))
+                    predicates.grouping.add(expression.p2);
+            }
+            return p;
+        }
+    }
+
+    static class Branch extends Node {
+        final String operator;
+        final Node left;
+        final Node right;
+
+        Branch(String operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        <T> Predicate apply(QueryReader.QueryState<T> state, Object[] literals, QueryReader.Predicates predicates) {
+            Predicate l = left.apply(state, literals, predicates);
+            Predicate r = right.apply(state, literals, predicates);
+            return QueryReader.Logical.apply(operator, state.cb, l, r);
+        }
+    }
+}
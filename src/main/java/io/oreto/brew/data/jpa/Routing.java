@@ -0,0 +1,178 @@
+package io.oreto.brew.data.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends reads to the replica entity manager factories and everything else to the primary.
+ * After a write with a caller token, the reads with the same token go to the primary until the read your writes
+ * window ends, so the caller sees its own changes before the replicas do, from whichever thread it reads.
+ */
+public class Routing {
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_OUTSTANDING
+    }
+
+    public static Routing of(EntityManagerFactory primary, EntityManagerFactory... replicas) {
+        return new Routing(primary, Arrays.asList(replicas));
+    }
+
+    private final EntityManagerFactory primary;
+    private final List<EntityManagerFactory> replicas;
+    private final List<AtomicInteger> outstanding = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile Strategy strategy = Strategy.ROUND_ROBIN;
+    private volatile Duration readYourWrites = Duration.ofSeconds(1);
+
+    protected Routing(EntityManagerFactory primary, List<EntityManagerFactory> replicas) {
+        this.primary = primary;
+        this.replicas = new ArrayList<>(replicas);
+        replicas.forEach(it -> outstanding.add(new AtomicInteger()));
+    }
+
+    public Routing strategy(Strategy strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * Set how long a caller reads from the primary after its last write, zero to always read from the replicas
+     */
+    public Routing readYourWrites(Duration window) {
+        if (window.isNegative())
+            throw new IllegalArgumentException("read your writes window can't be negative");
+        this.readYourWrites = window;
+        return this;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public Duration getReadYourWrites() {
+        return readYourWrites;
+    }
+
+    public EntityManagerFactory getPrimary() {
+        return primary;
+    }
+
+    public List<EntityManagerFactory> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return The number of reads running on the replica
+     */
+    public int outstanding(int replica) {
+        return outstanding.get(replica).get();
+    }
+
+    public EntityManager primary() {
+        return primary.createEntityManager();
+    }
+
+    /**
+     * @return A new token of a caller, such as a user or a request, to track its read your writes window
+     */
+    public Token token() {
+        return new Token();
+    }
+
+    /**
+     * Run the work with an entity manager of the replica the strategy picks, or of the primary within the
+     * read your writes window of the token or without replicas
+     * @param token The token of the caller, null when it has no window
+     */
+    public <U> U read(Token token, Function<EntityManager, U> work) {
+        int replica = replica(token);
+        if (replica < 0)
+            return run(primary(), work);
+
+        AtomicInteger reads = outstanding.get(replica);
+        reads.incrementAndGet();
+        try {
+            return run(replicas.get(replica).createEntityManager(), work);
+        } finally {
+            reads.decrementAndGet();
+        }
+    }
+
+    public <U> U read(Function<EntityManager, U> work) {
+        return read(null, work);
+    }
+
+    /**
+     * Run the work with an entity manager of the primary, then open the read your writes window of the token
+     * @param token The token of the caller, null when it has no window
+     */
+    public <U> U write(Token token, Function<EntityManager, U> work) {
+        try {
+            return run(primary(), work);
+        } finally {
+            if (token != null)
+                token.wrote();
+        }
+    }
+
+    public <U> U write(Function<EntityManager, U> work) {
+        return write(null, work);
+    }
+
+    // the index of the replica to read from, -1 for the primary
+    private int replica(Token token) {
+        if (token != null && token.wroteWithin(readYourWrites))
+            return -1;
+        int size = replicas.size();
+        if (size == 0)
+            return -1;
+
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        if (strategy == Strategy.ROUND_ROBIN)
+            return start;
+        // ties go round robin
+        int least = start;
+        for (int i = 1; i < size; i++) {
+            int replica = (start + i) % size;
+            if (outstanding(replica) < outstanding(least))
+                least = replica;
+        }
+        return least;
+    }
+
+    private static <U> U run(EntityManager em, Function<EntityManager, U> work) {
+        try {
+            return work.apply(em);
+        } finally {
+            if (em.isOpen())
+                em.close();
+        }
+    }
+
+    /**
+     * The last write of a caller, shared by the threads working for it
+     */
+    public static class Token {
+        private volatile Long wroteAt;
+
+        protected Token() { }
+
+        /**
+         * Open the read your writes window of the caller
+         */
+        public void wrote() {
+            wroteAt = System.nanoTime();
+        }
+
+        public boolean wroteWithin(Duration window) {
+            Long at = wroteAt;
+            return at != null && System.nanoTime() - at < window.toNanos();
+        }
+    }
+}
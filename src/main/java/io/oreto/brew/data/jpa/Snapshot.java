@@ -0,0 +1,114 @@
+package io.oreto.brew.data.jpa;
+
+import io.oreto.brew.obj.Reflect;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * A detached entity kept by the entity cache which is never handed out. Each caller gets a copy of its loaded
+ * state instead, so changing a cached entity without saving it doesn't change what the next caller reads.
+ * Attributes which weren't loaded keep their lazy proxies and collections, which can't be read without a session.
+ */
+class Snapshot {
+    static Snapshot of(Object entity) {
+        return entity == null ? null : new Snapshot(entity);
+    }
+
+    private final Object entity;
+
+    private Snapshot(Object entity) {
+        this.entity = entity;
+    }
+
+    Object copy(EntityManagerFactory factory) {
+        return new Copier(factory).copy(entity);
+    }
+
+    private static class Copier {
+        private final Metamodel metamodel;
+        private final PersistenceUnitUtil util;
+        // entities and embeddables already copied, so shared references and cycles stay that way in the copy
+        private final Map<Object, Object> copies = new IdentityHashMap<>();
+
+        private Copier(EntityManagerFactory factory) {
+            this.metamodel = factory.getMetamodel();
+            this.util = factory.getPersistenceUnitUtil();
+        }
+
+        private Object copy(Object source) {
+            Object copied = copies.get(source);
+            if (copied != null)
+                return copied;
+            ManagedType<?> type = metamodel.managedType(source.getClass());
+            try {
+                Constructor<?> constructor = source.getClass().getDeclaredConstructor();
+                constructor.setAccessible(true);
+                Object target = constructor.newInstance();
+                copies.put(source, target);
+                for (Field field : Reflect.getAllFields(source.getClass())) {
+                    if (Modifier.isStatic(field.getModifiers()))
+                        continue;
+                    field.setAccessible(true);
+                    Object value = field.get(source);
+                    // attributes which weren't loaded can't be read, so their proxies are kept as they are
+                    if (!(type instanceof EntityType) || !isAttribute(type, field.getName())
+                            || util.isLoaded(source, field.getName()))
+                        value = value(value);
+                    field.set(target, value);
+                }
+                return target;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(String.format("can't copy the cached %s"
+                        , source.getClass().getName()), e);
+            }
+        }
+
+        private static boolean isAttribute(ManagedType<?> type, String name) {
+            return type.getAttributes().stream().anyMatch(it -> it.getName().equals(name));
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Object value(Object value) {
+            if (value == null)
+                return null;
+            if (value instanceof Date)
+                return ((Date) value).clone();
+            if (value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                Object array = Array.newInstance(value.getClass().getComponentType(), length);
+                for (int i = 0; i < length; i++)
+                    Array.set(array, i, value(Array.get(value, i)));
+                return array;
+            }
+            if (value instanceof Map) {
+                Map map = value instanceof SortedMap
+                        ? new TreeMap(((SortedMap) value).comparator())
+                        : new LinkedHashMap();
+                ((Map<?, ?>) value).forEach((k, v) -> map.put(value(k), value(v)));
+                return map;
+            }
+            if (value instanceof Collection) {
+                Collection collection = value instanceof SortedSet
+                        ? new TreeSet(((SortedSet) value).comparator())
+                        : value instanceof Set ? new LinkedHashSet() : new ArrayList();
+                ((Collection<?>) value).forEach(it -> collection.add(value(it)));
+                return collection;
+            }
+            // proxies of associated entities aren't managed classes of their own, they are kept as they are
+            return isManaged(value.getClass()) ? copy(value) : value;
+        }
+
+        private boolean isManaged(Class<?> cls) {
+            return metamodel.getManagedTypes().stream().anyMatch(it -> it.getJavaType() == cls);
+        }
+    }
+}
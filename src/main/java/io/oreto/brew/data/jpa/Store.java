@@ -3,26 +3,113 @@ package io.oreto.brew.data.jpa;
 import io.oreto.brew.data.*;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 
 public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
-    EntityManager getEntityManager();
+    /**
+     * @return The factory of the store's entity managers, the primary with a routing.
+     * A store only joins the sessions started for its factory.
+     */
+    EntityManagerFactory getEntityManagerFactory();
     Class<T> getEntityClass();
 
+    default EntityManager getEntityManager() {
+        return getEntityManagerFactory().createEntityManager();
+    }
+
+    /**
+     * @return The routing of reads to replicas and writes to the primary, null to use getEntityManager for both
+     */
+    default Routing getRouting() {
+        return null;
+    }
+
+    /**
+     * @return The token of the caller the store works for, such as the current user or request, which reads its
+     * own writes from the primary. Null when the caller has no read your writes window.
+     */
+    default Routing.Token getToken() {
+        return null;
+    }
+
+    /**
+     * @return The session of the current thread started for this store's factory, or null
+     */
+    default UnitOfWork currentSession() {
+        return UnitOfWork.current() == null ? null : UnitOfWork.current(getEntityManagerFactory());
+    }
+
+    /**
+     * Run the work with a new entity manager, or the entity manager of the current session of the same factory.
+     * With a routing the work runs on the primary and opens the read your writes window of the token.
+     */
     default <U> U unit(Function<EntityManager, U> work) {
+        UnitOfWork session = currentSession();
+        if (session != null)
+            return work.apply(session.getEntityManager());
+        Routing routing = getRouting();
+        if (routing != null)
+            return routing.write(getToken(), work);
        EntityManager em = getEntityManager();
         U result = work.apply(em);
         em.close();
         return result;
     }
 
+    /**
+     * Run work which only reads, on a replica when the store has a routing
+     */
+    default <U> U read(Function<EntityManager, U> work) {
+        Routing routing = getRouting();
+        if (routing == null || currentSession() != null)
+            return unit(work);
+        return routing.read(getToken(), work);
+    }
+
+    /**
+     * Share one entity manager and one transaction across the store calls of the work, on this store or any other
+     * store of the same entity manager factory. Within a session of the same factory already started the work
+     * joins it, and throws an IllegalStateException when only one of the sessions is read only.
+     * With a routing a read only session runs on a replica and any other session on the primary.
+     */
+    default <U> U session(UnitOfWork.Options options, Function<UnitOfWork, U> work) {
+        UnitOfWork session = currentSession();
+        if (session != null)
+            return work.apply(session.join(options));
+        Routing routing = getRouting();
+        EntityManagerFactory factory = getEntityManagerFactory();
+        if (routing == null)
+            return UnitOfWork.run(factory, getEntityManager(), options, work);
+        return options.isReadOnly()
+                ? routing.read(getToken(), em -> UnitOfWork.run(factory, em, options, work))
+                : routing.write(getToken(), em -> UnitOfWork.run(factory, em, options, work));
+    }
+
+    default <U> U session(Function<UnitOfWork, U> work) {
+        return session(UnitOfWork.Options.of(), work);
+    }
+
+    default long Count(EntityManager em, String q) {
+        return DataStore.count(em, getEntityClass(), q);
+    }
+
+    default long Count(String q) {
+        return read(em -> Count(em, q));
+    }
+    default long Count() {
+        return read(em -> Count(em, ""));
+    }
+
     default Paged<T> List(EntityManager em, Paginate pager, Fetch.Plan fetchPlan) {
         return DataStore.list(em, getEntityClass(), pager, fetchPlan);
     }
 
     default Paged<T> List(Paginate pager, Fetch.Plan fetchPlan) {
-        return unit(em -> List(em, pager, fetchPlan));
+        return read(em -> List(em, pager, fetchPlan));
     }
 
     default Paged<T> List(EntityManager em, Fetch.Plan fetchPlan) {
@@ -30,7 +117,7 @@ public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
     }
 
     default Paged<T> List(Fetch.Plan fetchPlan) {
-        return unit(em -> List(em, fetchPlan));
+        return read(em -> List(em, fetchPlan));
     }
 
     default Paged<T> List(EntityManager em, Paginate pager) {
@@ -38,7 +125,7 @@ public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
     }
 
     default Paged<T> List(Paginate pager) {
-        return unit(em -> List(em, pager, Fetch.Plan.none()));
+        return read(em -> List(em, pager, Fetch.Plan.none()));
     }
 
     default Paged<T> List(EntityManager em) {
@@ -46,7 +133,7 @@ public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
     }
 
     default Paged<T> List() {
-        return unit(em -> List(em, Fetch.Plan.none()));
+        return read(em -> List(em, Fetch.Plan.none()));
     }
 
     default Paged<T> FindAll(EntityManager em, String q, Paginate pager, Fetch.Plan fetchPlan) {
@@ -54,27 +141,35 @@ public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
     }
 
     default Paged<T> FindAll(String q, Paginate pager, Fetch.Plan fetchPlan) {
-        return unit(em -> FindAll(em, q, pager, fetchPlan));
+        return read(em -> FindAll(em, q, pager, fetchPlan));
+    }
+
+    default Paged<Map<String, Object>> FindAll(EntityManager em, String q, Paginate pager, Projection projection) {
+        return DataStore.findAll(em, getEntityClass(), q, pager, projection);
+    }
+
+    default Paged<Map<String, Object>> FindAll(String q, Paginate pager, Projection projection) {
+        return read(em -> FindAll(em, q, pager, projection));
     }
 
     default Paged<T> FindAll(String q, Paginate pager) {
        return FindAll(q, pager, Fetch.Plan.none());
     }
     default Paged<T> FindAll(String q) {
-        return unit(em -> FindAll(em, q, Pager.of(), Fetch.Plan.none()));
+        return read(em -> FindAll(em, q, Pager.of(), Fetch.Plan.none()));
     }
 
     default Optional<T> FindOne(EntityManager em, String q, Paginate pager, Fetch.Plan fetchPlan) {
         return DataStore.findOne(em, getEntityClass(), q, pager, fetchPlan);
     }
     default Optional<T> FindOne(String q, Paginate pager, Fetch.Plan fetchPlan) {
-        return unit(em -> FindOne(em, q, pager, fetchPlan));
+        return read(em -> FindOne(em, q, pager, fetchPlan));
     }
     default Optional<T> FindOne(String q, Paginate pager) {
-        return unit(em -> FindOne(em, q, pager, Fetch.Plan.none()));
+        return read(em -> FindOne(em, q, pager, Fetch.Plan.none()));
     }
     default Optional<T> FindOne(String q) {
-        return unit(em -> FindOne(em, q, Pager.of(), Fetch.Plan.none()));
+        return read(em -> FindOne(em, q, Pager.of(), Fetch.Plan.none()));
     }
 
     default T Create(EntityManager em, T t, Fetch.Plan fetchPlan) {
@@ -90,17 +185,39 @@ public interface Store<ID, T extends Model<ID>> extends Crud<ID, T> {
         return unit(em -> Create(em, t, Fetch.Plan.none()));
     }
 
+    default long CreateAll(EntityManager em, Iterable<T> entities, DataStore.Batch batch) {
+        return DataStore.saveAll(em, entities, batch);
+    }
+
+    default long CreateAll(Iterable<T> entities, DataStore.Batch batch) {
+        return unit(em -> CreateAll(em, entities, batch));
+    }
+    default long CreateAll(Iterable<T> entities) {
+        return unit(em -> CreateAll(em, entities, DataStore.Batch.of()));
+    }
+
     default Optional<T> Retrieve(EntityManager em, ID id, Fetch.Plan fetchPlan) {
         return DataStore.get(em, getEntityClass(), id, fetchPlan);
     }
 
     @Override
     default Optional<T> Retrieve(ID id, Fetch.Plan fetchPlan) {
-       return unit(em -> Retrieve(em, id, fetchPlan));
+       return read(em -> Retrieve(em, id, fetchPlan));
     }
     @Override
     default Optional<T> Retrieve(ID id) {
-        return unit(em -> Retrieve(em, id, Fetch.Plan.none()));
+        return read(em -> Retrieve(em, id, Fetch.Plan.none()));
+    }
+
+    default Retrieved<ID, T> RetrieveAll(EntityManager em, Collection<ID> ids, Fetch.Plan fetchPlan) {
+        return DataStore.getAll(em, getEntityClass(), ids, fetchPlan);
+    }
+
+    default Retrieved<ID, T> RetrieveAll(Collection<ID> ids, Fetch.Plan fetchPlan) {
+        return read(em -> RetrieveAll(em, ids, fetchPlan));
+    }
+    default Retrieved<ID, T> RetrieveAll(Collection<ID> ids) {
+        return read(em -> RetrieveAll(em, ids, Fetch.Plan.none()));
     }
 
     default T Update(EntityManager em, T t, Fetch.Plan fetchPlan) {
@@ -0,0 +1,144 @@
+package io.oreto.brew.data.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import java.util.function.Function;
+
+/**
+ * One entity manager and one transaction shared by the store calls made on the current thread, until the work
+ * returns. The transaction commits when the work returns and rolls back when it throws. A session started
+ * inside another one of the same entity manager factory joins it and must be as read only as the outer one,
+ * the outer session decides whether the changes are batched. A session of another factory runs on its own.
+ */
+public class UnitOfWork {
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    /**
+     * @return The session of the current thread or null outside of a session
+     */
+    public static UnitOfWork current() {
+        return current.get();
+    }
+
+    static boolean isBatched(EntityManager entityManager) {
+        UnitOfWork session = current.get();
+        return session != null && session.batched && session.entityManager == entityManager;
+    }
+
+    /**
+     * @return The session of the current thread started for the factory, or null
+     */
+    static UnitOfWork current(EntityManagerFactory factory) {
+        UnitOfWork session = current.get();
+        return session != null && session.factory == factory ? session : null;
+    }
+
+    static <U> U run(EntityManagerFactory factory
+            , EntityManager entityManager
+            , Options options
+            , Function<UnitOfWork, U> work) {
+        UnitOfWork session = new UnitOfWork(factory, entityManager, options.readOnly, options.batched);
+        UnitOfWork outer = current.get();
+        EntityTransaction trx = entityManager.getTransaction();
+        current.set(session);
+        try {
+            if (session.readOnly)
+                entityManager.setFlushMode(FlushModeType.COMMIT);
+            trx.begin();
+            U result = work.apply(session);
+            if (session.readOnly)
+                trx.rollback();
+            else
+                trx.commit();
+            return result;
+        } catch (Exception x) {
+            if (trx.isActive()) trx.rollback();
+            throw x;
+        } finally {
+            if (outer == null)
+                current.remove();
+            else
+                current.set(outer);
+            entityManager.close();
+        }
+    }
+
+    private final EntityManagerFactory factory;
+    private final EntityManager entityManager;
+    private final boolean readOnly;
+    private final boolean batched;
+
+    protected UnitOfWork(EntityManagerFactory factory, EntityManager entityManager, boolean readOnly, boolean batched) {
+        this.factory = factory;
+        this.entityManager = entityManager;
+        this.readOnly = readOnly;
+        this.batched = batched;
+    }
+
+    // a nested session joins this one, unless their read only options conflict
+    UnitOfWork join(Options options) {
+        if (options.readOnly != readOnly)
+            throw new IllegalStateException(readOnly
+                    ? "a session which writes can't join a read only session"
+                    : "a read only session can't join a session which writes");
+        return this;
+    }
+
+    public EntityManager getEntityManager() {
+        return entityManager;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * Write the pending changes now rather than at the end of a batched session
+     */
+    public void flush() {
+        if (!readOnly)
+            entityManager.flush();
+    }
+
+    public static class Options {
+        public static Options of() {
+            return new Options();
+        }
+
+        private boolean readOnly;
+        private boolean batched;
+
+        protected Options() { }
+
+        /**
+         * Never flush the session and roll its transaction back, for work which only reads
+         */
+        public Options readOnly() {
+            this.readOnly = true;
+            return this;
+        }
+
+        /**
+         * Skip the flush of each update and write all the changes once when the session commits,
+         * so constraint violations are only reported at the end
+         */
+        public Options batched() {
+            this.batched = true;
+            return this;
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        public boolean isBatched() {
+            return batched;
+        }
+    }
+}
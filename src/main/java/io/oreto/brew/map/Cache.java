@@ -0,0 +1,179 @@
+package io.oreto.brew.map;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, thread safe, least recently used cache which keeps hit and miss counters.
+ * Entries can optionally expire a fixed time after they are written.
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class Cache<K, V> {
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    public static <K, V> Cache<K, V> of(int maxSize) {
+        return new Cache<>(maxSize);
+    }
+
+    public static <K, V> Cache<K, V> of() {
+        return of(DEFAULT_MAX_SIZE);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long written;
+
+        Entry(V value, long written) {
+            this.value = value;
+            this.written = written;
+        }
+    }
+
+    private final Map<K, Entry<V>> map;
+    private int maxSize;
+    private long ttl;
+    private boolean enabled = true;
+    private long hits;
+    private long misses;
+
+    protected Cache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > Cache.this.maxSize;
+            }
+        };
+    }
+
+    // the live value for the key, expired entries are removed
+    private V lookup(K k) {
+        Entry<V> entry = map.get(k);
+        if (entry == null)
+            return null;
+        if (ttl > 0 && System.nanoTime() - entry.written > ttl) {
+            map.remove(k);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Get the cached value for the key, computing and caching it when absent.
+     * The loader runs outside of the lock so a slow computation does not block other readers.
+     * @param k The key
+     * @param loader Computes the value when it isn't cached, a null value is not cached
+     * @return The cached or computed value
+     */
+    public V get(K k, Function<K, V> loader) {
+        if (!enabled)
+            return loader.apply(k);
+        synchronized (this) {
+            V v = lookup(k);
+            if (v != null) {
+                hits++;
+                return v;
+            }
+            misses++;
+        }
+        V v = loader.apply(k);
+        if (v != null)
+            put(k, v);
+        return v;
+    }
+
+    public synchronized V get(K k) {
+        V v = lookup(k);
+        if (v == null) misses++;
+        else hits++;
+        return v;
+    }
+
+    public synchronized Cache<K, V> put(K k, V v) {
+        if (enabled && maxSize > 0)
+            map.put(k, new Entry<>(v, System.nanoTime()));
+        return this;
+    }
+
+    public synchronized V remove(K k) {
+        Entry<V> entry = map.remove(k);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Remove the entries whose key matches
+     */
+    public synchronized Cache<K, V> removeIf(Predicate<K> test) {
+        map.keySet().removeIf(test);
+        return this;
+    }
+
+    public synchronized Cache<K, V> clear() {
+        map.clear();
+        return this;
+    }
+
+    public synchronized Cache<K, V> resetStats() {
+        hits = 0;
+        misses = 0;
+        return this;
+    }
+
+    public synchronized Cache<K, V> maxSize(int maxSize) {
+        this.maxSize = maxSize;
+        map.keySet().removeIf(it -> map.size() > maxSize);
+        return this;
+    }
+
+    /**
+     * Expire entries a fixed time after they are written, a zero duration never expires
+     */
+    public synchronized Cache<K, V> ttl(Duration ttl) {
+        this.ttl = ttl.toNanos();
+        return this;
+    }
+
+    public synchronized Cache<K, V> enable() {
+        enabled = true;
+        return this;
+    }
+
+    public synchronized Cache<K, V> disable() {
+        enabled = false;
+        map.clear();
+        return this;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized Duration getTtl() {
+        return Duration.ofNanos(ttl);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -153,6 +153,25 @@ public class JsonRenderer {
     }
 
 
+    /**
+     * @return The dotted property paths picked by a select expression, such as name address.line or orders{amount}
+     */
+    public List<String> paths(String dsl) {
+        List<String> paths = new ArrayList<>();
+        if (Str.isBlank(dsl))
+            return paths;
+        picker(dsl.trim()).forEach((address, fields) -> {
+            for (String field : fields) {
+                if (field.isEmpty() || field.startsWith("*"))
+                    continue;
+                // indexes pick elements of the rendered list, they aren't part of the path
+                paths.add((address.isEmpty() ? field : String.format("%s.%s", address, field))
+                        .replaceAll("\\[[0-9]*:?[0-9]*]", ""));
+            }
+        });
+        return paths;
+    }
+
     protected Map<String, List<String>> picker(String dsl) {
         MultiString<String> picks = new MultiString<>();
         StringBuilder sb = new StringBuilder();
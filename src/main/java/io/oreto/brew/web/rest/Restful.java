@@ -5,6 +5,7 @@ import io.oreto.brew.data.Paged;
 import io.oreto.brew.data.Pager;
 import io.oreto.brew.data.Paginate;
 import io.oreto.brew.data.jpa.Fetch;
+import io.oreto.brew.data.jpa.Projection;
 import io.oreto.brew.data.jpa.Store;
 import io.oreto.brew.obj.Reflect;
 import io.oreto.brew.obj.Safe;
@@ -79,6 +80,15 @@ public interface Restful<ID, T extends Model<ID>> extends Store<ID, T> {
     default RestResponse<Paged<T>> find(String q) {
        return find(q, Fetch.Plan.none());
     }
+    /**
+     * Find only the fields of the select expression, which are read as maps instead of entities
+     */
+    default RestResponse<Paged<Map<String, Object>>> find(String q, String select, Paginate pager) {
+        return RestResponse.ok(FindAll(q, pager, Projection.select(select)));
+    }
+    default RestResponse<Paged<Map<String, Object>>> find(String q, String select) {
+        return find(q, select, Pager.of());
+    }
     default RestResponse<T> findOne(String q, Paginate pager, Fetch.Plan fetchPlan) {
         Optional<T> t = FindOne(q, pager, fetchPlan);
         return t.map(RestResponse::ok).orElseGet(RestResponse::notFound);
@@ -124,19 +134,22 @@ public interface Restful<ID, T extends Model<ID>> extends Store<ID, T> {
     }
 
     default RestResponse<T> update(ID id, Map<String, Object> fields, Fetch.Plan fetchPlan) {
-        T t = unit(em -> em.find(getEntityClass(), id));
-        if (Objects.nonNull(t)) {
-            try {
-                Reflect.copy(t, fields, Reflect.CopyOptions.create().updateCollections());
-            } catch (ReflectiveOperationException e) {
-                RestResponse<T> restResponse = RestResponse.unprocessable();
-                restResponse.withError(e);
-                return restResponse;
+        return unit(em -> {
+            T t = em.find(getEntityClass(), id);
+            if (Objects.nonNull(t)) {
+                try {
+                    Reflect.copy(t, fields, Reflect.CopyOptions.create().updateCollections());
+                } catch (ReflectiveOperationException e) {
+                    em.detach(t);
+                    RestResponse<T> restResponse = RestResponse.unprocessable();
+                    restResponse.withError(e);
+                    return restResponse;
+                }
+                return updateAndRetrieve(em, t, fetchPlan);
+            } else {
+                return RestResponse.notFound();
             }
-            return update(t, fetchPlan);
-        } else {
-            return RestResponse.notFound();
-        }
+        });
     }
     default RestResponse<T> update(ID id, Map<String, Object> fields) {
         return update(id, fields, Fetch.Plan.none());
@@ -2,8 +2,14 @@ package io.oreto.brew.data.jpa;
 
 import io.jsonwebtoken.lang.Maps;
 import io.oreto.brew.collections.Lists;
+import io.oreto.brew.data.CountStrategy;
 import io.oreto.brew.data.Paged;
+import io.oreto.brew.data.Pager;
+import io.oreto.brew.data.Paginate;
+import io.oreto.brew.data.Retrieved;
+import io.oreto.brew.data.Sort;
 import io.oreto.brew.data.jpa.repo.*;
+import io.oreto.brew.map.Cache;
 import org.hibernate.Session;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,12 +24,23 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.PersistenceUnitUtil;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -51,6 +68,8 @@ public class JpaTest {
         DataStore.deleteAll(em, Item.class);
         DataStore.deleteAll(em, Order.class);
         DataStore.deleteAll(em, Address.class);
+        DataStore.deleteAll(em, Vehicle.class);
+        DataStore.deleteAll(em, Tire.class);
     }
 
     @AfterEach
@@ -153,6 +172,185 @@ public class JpaTest {
         assertEquals(page.get(0).getOrders().get(0), page.get(0).getOrders().get(0).getItems().get(0).getOrders().get(0));
     }
 
+    @Test
+    public void listFetchParallel() {
+        TestData.random(10, 3, 3, em);
+        Fetch.Plan plan = Fetch.join("nickNames", "address", "orders[]")
+                .at("orders").join("items[]")
+                .at("orders.items").join("attributes").buildPlan();
+        List<Person> expected = DataStore.list(em, Person.class, Pager.of().withSorting("name"), plan).getPage();
+        em.clear();
+
+        List<Person> page = DataStore.list(em
+                , Person.class
+                , Pager.of().withSorting("name")
+                , Fetch.join("nickNames", "address", "orders[]")
+                        .at("orders").join("items[]")
+                        .at("orders.items").join("attributes").parallel().buildPlan()).getPage();
+        em.clear();
+
+        assertEquals(expected.size(), page.size());
+        for (int i = 0; i < page.size(); i++) {
+            Person person = page.get(i);
+            assertEquals(expected.get(i).getName(), person.getName());
+            assertTrue(util.isLoaded(person, "nickNames"));
+            assertTrue(util.isLoaded(person, "orders"));
+            assertEquals(new ArrayList<>(expected.get(i).getNickNames()), new ArrayList<>(person.getNickNames()));
+            assertEquals(expected.get(i).getAddress().getLine(), person.getAddress().getLine());
+            assertEquals(3, person.getOrders().size());
+            assertEquals(new HashSet<>(expected.get(i).getOrders()), new HashSet<>(person.getOrders()));
+            for (Order order : person.getOrders()) {
+                assertTrue(util.isLoaded(order, "items"));
+                assertEquals(3, order.getItems().size());
+                assertTrue(util.isLoaded(order.getItems().get(0), "attributes"));
+            }
+        }
+
+        // within a transaction the fetches stay on its entity manager, which sees the uncommitted rows
+        EntityTransaction trx = em.getTransaction();
+        trx.begin();
+        try {
+            DataStore.save(em, new Person().withName("Uncommitted").withAddress(new Address().withLine("nowhere"))
+                    .addOrder(new Order().withAmount(1.0).addItem(new Item().withName("pending"))));
+            em.flush();
+            em.clear();
+            Person uncommitted = DataStore.findAll(em
+                    , Person.class
+                    , "name:Uncommitted"
+                    , Pager.of()
+                    , Fetch.join("address", "orders[]").at("orders").join("items[]").parallel().buildPlan())
+                    .getPage().get(0);
+            assertEquals(1, uncommitted.getOrders().size());
+            assertEquals("pending", uncommitted.getOrders().get(0).getItems().get(0).getName());
+        } finally {
+            trx.rollback();
+        }
+    }
+
+    @Test
+    public void listFetchGraph() {
+        TestData.random(10, 3, 3, em);
+        List<Person> expected = DataStore.list(em
+                , Person.class
+                , Pager.of(1, 4).withSorting("name")
+                , Fetch.join("address", "nickNames", "orders[]").at("orders").join("items[]").buildPlan()).getPage();
+        em.clear();
+
+        Fetch.Plan plan = Fetch.join("address", "nickNames", "orders[]").at("orders").join("items[]").graph().buildPlan();
+        FetchGraph<Person> graph = FetchGraph.of(plan, em, Person.class);
+        assertTrue(graph.hasCollection());
+        assertEquals(Lists.of("nickNames"), graph.getRemaining().joins("").stream()
+                .map(Fetch::getName).collect(Collectors.toList()));
+        assertEquals("items", graph.getRemaining().joins("orders").get(0).getName());
+
+        List<Person> page = DataStore.list(em, Person.class, Pager.of(1, 4).withSorting("name"), plan).getPage();
+        em.clear();
+        assertEquals(4, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            Person person = page.get(i);
+            assertEquals(expected.get(i).getName(), person.getName());
+            assertTrue(util.isLoaded(person, "address"));
+            assertTrue(util.isLoaded(person, "nickNames"));
+            assertEquals(new HashSet<>(expected.get(i).getOrders()), new HashSet<>(person.getOrders()));
+            person.getOrders().forEach(it -> assertEquals(3, it.getItems().size()));
+        }
+
+        // a graph of single associations is applied to the page query itself
+        plan = Fetch.join("address").graph().buildPlan();
+        assertFalse(FetchGraph.of(plan, em, Person.class).hasCollection());
+        page = DataStore.list(em, Person.class, Pager.of(1, 4).withSorting("name"), plan).getPage();
+        em.clear();
+        assertEquals(4, page.size());
+        page.forEach(it -> assertTrue(util.isLoaded(it, "address")));
+    }
+
+    @Test
+    public void listFetchBatched() {
+        TestData.random(10, 10, 10, em);
+        Paged<Person> result = DataStore.list(em
+                , Person.class
+                , Pager.of().withSorting("name")
+                , Fetch.get("address", "orders[8:9]").at("orders").get("items[0:5](name:asc)").batch().buildPlan());
+        List<Person> page = result.getPage();
+        Session session = em.unwrap(Session.class);
+        session.clear();
+
+        Paged<Person> expected = DataStore.list(em
+                , Person.class
+                , Pager.of().withSorting("name")
+                , Fetch.get("address", "orders[8:9]").at("orders").get("items[0:5](name:asc)").buildPlan());
+        session.clear();
+
+        assertEquals(10, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            Person person = page.get(i);
+            assertTrue(util.isLoaded(person, "orders"));
+            assertEquals(2, person.getOrders().size());
+            assertEquals(new ArrayList<>(expected.getPage().get(i).getOrders()), new ArrayList<>(person.getOrders()));
+            for (int j = 0; j < person.getOrders().size(); j++) {
+                assertEquals(5, person.getOrders().get(j).getItems().size());
+                assertEquals(new ArrayList<>(expected.getPage().get(i).getOrders().get(j).getItems())
+                        , new ArrayList<>(person.getOrders().get(j).getItems()));
+            }
+        }
+
+        result = DataStore.list(em
+                , Person.class
+                , Fetch.get("orders[]").at("orders").get("items[]").at("orders.items").get("orders[]")
+                        .batch().buildPlan());
+        page = result.getPage();
+        session.clear();
+        session.close();
+        assertEquals(page.get(0).getOrders().get(0), page.get(0).getOrders().get(0).getItems().get(0).getOrders().get(0));
+    }
+
+    @Test
+    public void listFetchWindow() {
+        TestData.random(6, 5, 1, em);
+        Session session = em.unwrap(Session.class);
+        java.util.function.Function<Fetch.Plan, List<List<Long>>> orderIds = plan -> {
+            List<List<Long>> ids = DataStore.list(em, Person.class, Pager.of().withSorting("name"), plan)
+                    .getPage().stream()
+                    .map(it -> it.getOrders().stream().map(Order::getId).collect(Collectors.toList()))
+                    .collect(Collectors.toList());
+            session.clear();
+            return ids;
+        };
+
+        List<List<Long>> expected = orderIds.apply(Fetch.get("orders[1:3](amount:desc)").buildPlan());
+        List<List<Long>> windowed = orderIds.apply(Fetch.get("orders[1:3](amount:desc)").window().buildPlan());
+        // another sorting of the probed path reads the same slices as the fetch query
+        assertEquals(orderIds.apply(Fetch.get("orders[0:2](amount)").buildPlan())
+                , orderIds.apply(Fetch.get("orders[0:2](amount)").window().buildPlan()));
+        QueryReader.BadQueryException unknown = assertThrows(QueryReader.BadQueryException.class
+                , () -> orderIds.apply(Fetch.get("orders[1:3](nothing:desc)").window().buildPlan()));
+        assertTrue(unknown.getMessage().contains("nothing"));
+        session.close();
+
+        assertEquals(6, windowed.size());
+        windowed.forEach(it -> assertEquals(3, it.size()));
+        assertEquals(expected, windowed);
+    }
+
+    @Test
+    public void metadata() {
+        Metadata metadata = Metadata.of(em);
+        assertSame(metadata, Metadata.of(em.getEntityManagerFactory()));
+        assertSame(metadata.entity(Person.class), metadata.entity(Person.class));
+
+        assertArrayEquals(new String[] { "id" }, metadata.idNames(Person.class));
+        assertEquals(2, metadata.idNames(Vehicle.class).length);
+        assertEquals("person", metadata.entity(Person.class).getMappedBy("orders"));
+        assertEquals("items", metadata.entity(Item.class).getMappedBy("orders"));
+        assertEquals(Order.class, metadata.entity(Person.class).getAttributeClass("orders"));
+        assertEquals(Optional.of(Item.class), metadata.type(Person.class, "orders.items"));
+        assertEquals(Optional.empty(), metadata.type(Person.class, "orders.nothing"));
+        assertEquals(Optional.of("id"), metadata.associationId(Order.class, "person"));
+        assertEquals(Optional.empty(), metadata.associationId(Order.class, "person.name"));
+        assertEquals("P_ORDER", metadata.entity(Order.class).getTable());
+        assertEquals("address_id", metadata.entity(Person.class).getIdColumn("id"));
+    }
+
     @Test
     public void query1() {
         TestData.setupPeople(em);
@@ -192,6 +390,168 @@ public class JpaTest {
         assertEquals(4, page.size());
     }
 
+    @Test
+    public void exists() {
+        TestData.setupPeople(em);
+
+        assertTrue(DataStore.exists(em, Person.class));
+        assertTrue(DataStore.exists(em, Person.class, "orders.items.name::icontains:ring"));
+        assertFalse(DataStore.exists(em, Person.class, "name:nobody"));
+        assertTrue(DataStore.Q.of(Person.class)
+                .lt(DataStore.Q.Func.of(Function.count, "orders.items"), 2)
+                .exists(em));
+        assertFalse(DataStore.Q.of(Person.class)
+                .gt(DataStore.Q.Func.of(Function.count, "orders.items"), 100)
+                .exists(em));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void projection() {
+        TestData.setupPeople(em);
+
+        Paged<Map<String, Object>> paged = DataStore.findAll(em
+                , Person.class
+                , "name:Bilbo"
+                , Pager.of()
+                , Projection.select("name address{line} nickNames orders{amount items{name attributes}}"));
+        assertEquals(1L, paged.getPager().getCount());
+        Map<String, Object> bilbo = paged.getPage().get(0);
+        assertEquals("Bilbo", bilbo.get("name"));
+        assertEquals("The Shire", ((Map<String, Object>) bilbo.get("address")).get("line"));
+        assertEquals(2, ((List<String>) bilbo.get("nickNames")).size());
+        List<Map<String, Object>> orders = (List<Map<String, Object>>) bilbo.get("orders");
+        assertEquals(13000000.00, orders.get(0).get("amount"));
+        List<Map<String, Object>> items = (List<Map<String, Object>>) orders.get(0).get("items");
+        assertEquals(3, items.size());
+        Map<String, Object> sting = items.stream().filter(it -> "Sting".equals(it.get("name"))).findFirst().get();
+        assertEquals("glows", ((Map<String, String>) sting.get("attributes")).get("special"));
+        assertFalse(sting.containsKey("id"));
+
+        List<Map<String, Object>> names = DataStore.Q.of(Person.class)
+                .iContains("address.line", "hogwarts")
+                .order("name")
+                .select(em, "name", "address")
+                .getPage();
+        assertEquals(3, names.size());
+        assertEquals("Harry Potter", names.get(0).get("name"));
+        assertTrue(((Map<String, Object>) names.get(0).get("address")).containsKey("line"));
+    }
+
+    public static class Spending {
+        final String name;
+        final Long items;
+        final Double total;
+
+        public Spending(String name, Long items, Double total) {
+            this.name = name;
+            this.items = items;
+            this.total = total;
+        }
+    }
+
+    @Test
+    public void aggregate() {
+        TestData.setupPeople(em);
+
+        List<Aggregation.Row> rows = DataStore.aggregate(em
+                , Order.class
+                , Aggregation.by("person.name").count("items").sum("amount").order("count_items:desc"));
+        assertEquals(5, rows.size());
+        assertEquals("Snape", rows.get(0).get("person.name"));
+        assertEquals(8L, rows.get(0).getLong("count_items"));
+        assertEquals(8 * 541.00, rows.get(0).getDouble("sum_amount"));
+
+        Aggregation.Row all = DataStore.aggregate(em, Order.class, Aggregation.by().count().max("amount")).get(0);
+        assertEquals(5L, all.getLong("count"));
+        assertEquals(401000000.00, all.getDouble("max_amount"));
+
+        List<Spending> spending = DataStore.Q.of(Order.class)
+                .gt(DataStore.Q.Func.of(Function.count, "items"), 3)
+                .aggregate(em, Aggregation.by("person.name").count("items").sum("amount").order("person.name")
+                        , Spending.class);
+        assertEquals(3, spending.size());
+        assertEquals("Harry Potter", spending.get(0).name);
+        assertEquals(4L, spending.get(0).items);
+        assertEquals("Tom Riddle", spending.get(2).name);
+
+        // the plain condition filters the orders, the aggregate condition filters the groups
+        rows = DataStore.aggregate(em
+                , Order.class
+                , "amount::lt:1000 and count{items}::gt:3"
+                , Aggregation.by("person.name").count("items").order("person.name"));
+        assertEquals(Lists.of("Snape", "Tom Riddle")
+                , rows.stream().map(it -> it.get("person.name")).collect(Collectors.toList()));
+        assertThrows(QueryReader.BadQueryException.class, () -> DataStore.aggregate(em
+                , Order.class
+                , "amount::lt:1000 or count{items}::gt:3"
+                , Aggregation.by("person.name").count("items")));
+    }
+
+    @Test
+    public void typedQuery() {
+        TestData.setupPeople(em);
+
+        assertEquals(4L, DataStore.Q.of(Order.class)
+                .gte("amount", 541.00)
+                .lt("purchasedOn", LocalDateTime.now().plusMinutes(1))
+                .count(em));
+
+        DataStore.Q<Person> q = DataStore.Q.of(Person.class)
+                .eq("name", "Snape")
+                .or()
+                .group()
+                .iContains("address.line", "shire")
+                .isNotNull("name")
+                .endGroup()
+                .order("name");
+        assertEquals("name::eq:Snape or (address.line::icontains:shire or name::not_isnull)", q.toString());
+        List<Person> page = q.find(em).getPage();
+        assertEquals(DataStore.findAll(em, Person.class, q.toString()).getPage().size(), page.size());
+        assertEquals("Bilbo", page.get(0).getName());
+        assertTrue(DataStore.Q.of(Person.class).eq("name", "Snape").exists(em));
+        assertFalse(DataStore.Q.of(Person.class).eq("name", "Snape \"The Half Blood Prince\"").exists(em));
+    }
+
+    @Test
+    public void parameterized() {
+        TestData.setupPeople(em);
+        String[] queries = new String[] {
+                "name:Snape"
+                , "name::in:['Bilbo', 'Ross', 'Snape']"
+                , "orders.items.name::in:['Hedwig']"
+                , "orders.amount::gt:541"
+                , "orders.amount::gte:541 and name::startswith:S"
+                , "address.line::icontains:shire or name::iendswith:potter"
+                , "count{orders.items}::gt:3"
+        };
+        Long[] counts = Arrays.stream(queries).map(it -> DataStore.count(em, Person.class, it)).toArray(Long[]::new);
+        int[] found = Arrays.stream(queries)
+                .mapToInt(it -> DataStore.findAll(em, Person.class, it).getPage().size()).toArray();
+
+        Metadata.of(em).parameterized(true);
+        EntityManagerFactory other = replica("unparameterized");
+        try {
+            for (int i = 0; i < queries.length; i++) {
+                assertEquals(counts[i], DataStore.count(em, Person.class, queries[i]));
+                assertEquals(found[i], DataStore.findAll(em, Person.class, queries[i]).getPage().size(), queries[i]);
+            }
+            // the setting belongs to the factory
+            assertFalse(Metadata.of(other).isParameterized());
+            assertEquals(QueryReader.MAX_SIZE, Metadata.of(other).getInLimit());
+        } finally {
+            other.close();
+            Metadata.of(em).parameterized(false);
+        }
+
+        QueryReader.Prepared<Person> prepared =
+                DataStore.prepare(em, Person.class, "name::istartswith:b", Lists.of(Sort.of("name")));
+        assertEquals("Bilbo", prepared.list(em, "name::istartswith:b").get(0).getName());
+        assertEquals("Harry Potter", prepared.list(em, "name::istartswith:h").get(0).getName());
+        assertEquals(1, prepared.list(em, "name::istartswith:\"Tom R\"", Pager.of(1, 5)).size());
+        assertThrows(QueryReader.BadQueryException.class, () -> prepared.list(em, "name::iendswith:b"));
+    }
+
     @Test
     public void query4() {
         TestData.setupPeople(em);
@@ -267,6 +627,306 @@ public class JpaTest {
        assertFalse(result.getPage().isEmpty());
     }
 
+    @Test
+    public void queryTemplateCache() {
+        TestData.setupPeople(em);
+        QueryTemplate.cache().clear().resetStats();
+        QueryTemplate.queries().clear();
+
+        Paged<Person> result = DataStore.findAll(em, Person.class, "name:Bilbo or name:\"Harry Potter\"");
+        assertEquals(2, result.getPage().size());
+        long misses = QueryTemplate.cache().misses();
+
+        // the same query string is bound once, without tokenizing or looking up its template again
+        long lookups = QueryTemplate.cache().hits() + misses;
+        assertSame(QueryTemplate.of(Person.class, "name:Bilbo or name:\"Harry Potter\"")
+                , QueryTemplate.of(Person.class, "name:Bilbo or name:\"Harry Potter\""));
+        assertEquals(lookups, QueryTemplate.cache().hits() + QueryTemplate.cache().misses());
+
+        result = DataStore.findAll(em, Person.class, "name:Snape or name:\"Tom Riddle\"");
+        assertEquals(2, result.getPage().size());
+        assertTrue(result.getPage().stream().anyMatch(it -> it.getName().equals("Tom Riddle")));
+        assertEquals(misses, QueryTemplate.cache().misses());
+        assertTrue(QueryTemplate.cache().hits() > 0);
+
+        result = DataStore.findAll(em, Person.class, "name::in:['Bilbo', 'Ross', 'Snape'] and address.line::icontains:hogwarts");
+        assertEquals(1, result.getPage().size());
+        result = DataStore.findAll(em, Person.class, "name::in:['Harry Potter', 'Snape'] and address.line::icontains:shire");
+        assertEquals(0, result.getPage().size());
+
+        // literals with commas must not run into each other, [Ross, Bilbo, Snape] either way
+        String first = "name:\"Ross, Bilbo\" or name:Snape";
+        String second = "name:Ross or name:\"Bilbo, Snape\"";
+        assertNotEquals(QueryTemplate.of(Person.class, first).getKey(), QueryTemplate.of(Person.class, second).getKey());
+        QueryCache.enable();
+        try {
+            assertEquals("Snape", DataStore.findAll(em, Person.class, first).getPage().get(0).getName());
+            assertEquals("Ross", DataStore.findAll(em, Person.class, second).getPage().get(0).getName());
+        } finally {
+            QueryCache.disable();
+        }
+    }
+
+    @Test
+    public void keysetPaging() {
+        TestData.random(10, 1, 1, em);
+        List<String> expected = DataStore.list(em, Person.class, Pager.of(1, 20).withSorting("name"))
+                .getPage().stream().map(Person::getName).collect(Collectors.toList());
+
+        List<String> names = new ArrayList<>();
+        Paginate pager = Pager.of(1, 3).withSorting("name:desc").keyset().disableCount();
+        Paged<Person> paged;
+        do {
+            paged = DataStore.list(em, Person.class, pager);
+            names.addAll(paged.getPage().stream().map(Person::getName).collect(Collectors.toList()));
+            pager = paged.getPager().nextPage();
+        } while (paged.getNext() != null);
+        Collections.reverse(names);
+        assertEquals(expected, names);
+
+        names.clear();
+        pager = Pager.of(1, 4).keyset().disableCount();
+        do {
+            paged = DataStore.list(em, Person.class, pager, Fetch.join("address").buildPlan());
+            paged.getPage().forEach(it -> assertTrue(util.isLoaded(it, "address")));
+            names.addAll(paged.getPage().stream().map(Person::getName).collect(Collectors.toList()));
+            pager = paged.getPager().nextPage();
+        } while (paged.getNext() != null);
+        assertEquals(10, names.size());
+        assertEquals(10, names.stream().distinct().count());
+
+        // nulls sort last in either direction and are sought past like any other key
+        List<String> cutlery = Arrays.asList("knife", null, "fork", null, "spoon");
+        cutlery.forEach(it -> DataStore.save(em, new Item().withName(it)));
+        for (String sort : Arrays.asList("name", "name:desc")) {
+            for (String q : Arrays.asList("", "id::gt:0")) {
+                List<String> items = new ArrayList<>();
+                Paged<Item> page;
+                Paginate itemPager = Pager.of(1, 2).withSorting(sort).keyset().disableCount();
+                do {
+                    page = DataStore.findAll(em, Item.class, q, itemPager, Fetch.Plan.none());
+                    items.addAll(page.getPage().stream().map(Item::getName)
+                            .filter(cutlery::contains).collect(Collectors.toList()));
+                    itemPager = page.getPager().nextPage();
+                } while (page.getNext() != null);
+                assertEquals(sort.endsWith("desc")
+                        ? Arrays.asList("spoon", "knife", "fork", null, null)
+                        : Arrays.asList("fork", "knife", "spoon", null, null), items);
+            }
+        }
+        assertNotNull(Keyset.encode(new Object[] { null, 1L }));
+    }
+
+    @Test
+    public void chunkedIn() {
+        TestData.random(7, 2, 1, em);
+        TestData.setupVehicles(em);
+        List<String> expected = DataStore.list(em, Person.class, Pager.of(1, 20).withSorting("name"))
+                .getPage().stream().map(Person::getName).collect(Collectors.toList());
+        int limit = Metadata.of(em).getInLimit();
+        try {
+            Metadata.of(em).inLimit(2);
+            Paged<Person> result = DataStore.list(em
+                    , Person.class
+                    , Pager.of(1, 20).withSorting("name")
+                    , Fetch.join("address", "orders[]", "nickNames").buildPlan());
+            assertEquals(expected, result.getPage().stream().map(Person::getName).collect(Collectors.toList()));
+            result.getPage().forEach(it -> {
+                assertTrue(util.isLoaded(it, "address"));
+                assertEquals(2, it.getOrders().size());
+            });
+            em.clear();
+
+            // the parallel queries are unordered, so the associations are stitched by id
+            List<Person> parallel = DataStore.list(em
+                    , Person.class
+                    , Pager.of(1, 20).withSorting("name:desc")
+                    , Fetch.join("address", "orders[]", "nickNames").parallel().buildPlan()).getPage();
+            Collections.reverse(parallel);
+            for (int i = 0; i < parallel.size(); i++) {
+                assertEquals(result.getPage().get(i).getName(), parallel.get(i).getName());
+                assertEquals(result.getPage().get(i).getAddress().getLine(), parallel.get(i).getAddress().getLine());
+                assertEquals(new HashSet<>(result.getPage().get(i).getOrders())
+                        , new HashSet<>(parallel.get(i).getOrders()));
+            }
+
+            Paged<Vehicle> vehicles = DataStore.list(em, Vehicle.class, Fetch.join("tire").buildPlan());
+            assertEquals(2, vehicles.getPage().size());
+            assertTrue(util.isLoaded(vehicles.getPage().get(0), "tire"));
+        } finally {
+            Metadata.of(em).inLimit(limit);
+        }
+    }
+
+    @Test
+    public void bulkDelete() {
+        TestData.random(5, 2, 1, em);
+        TestData.setupVehicles(em);
+        Metadata metadata = Metadata.of(em);
+        assertTrue(metadata.entity(Vehicle.class).isBulkDeletable());
+        assertTrue(metadata.entity(Tire.class).isBulkDeletable());
+        assertFalse(metadata.entity(Person.class).isBulkDeletable());
+        assertFalse(metadata.entity(Order.class).isBulkDeletable());
+
+        assertEquals(1, DataStore.bulkDeleteWhere(em, Vehicle.class, "model:Mirage", 1));
+        assertEquals(1L, DataStore.count(em, Vehicle.class));
+        assertEquals(1, DataStore.bulkDeleteAll(em, Vehicle.class));
+        assertEquals(2, DataStore.bulkDeleteWhere(em, Tire.class, "id.size::gt:1", 1));
+        assertEquals(0L, DataStore.count(em, Tire.class));
+
+        // cascading entities are removed one by one
+        assertEquals(5, DataStore.bulkDeleteAll(em, Person.class, 2));
+        assertEquals(0L, DataStore.count(em, Person.class));
+        assertEquals(0L, DataStore.count(em, Order.class));
+    }
+
+    @Test
+    public void updateWhere() {
+        TestData.setupPeople(em);
+        Map<String, Object> amount = new HashMap<>();
+        amount.put("amount", "1.5");
+        assertEquals(3, DataStore.updateWhere(em, Order.class, "amount::lt:1000", amount));
+        assertEquals(3L, DataStore.count(em, Order.class, "amount:1.5"));
+
+        // the person join is matched with a subquery
+        amount.put("amount", 7);
+        assertEquals(1, DataStore.Q.of(Order.class).eq("person.name", "Snape").update(em, amount));
+        assertEquals(7.0, DataStore.Q.of(Order.class).eq("person.name", "Snape").findOne(em)
+                .map(Order::getAmount).orElse(null));
+
+        Map<String, Object> line = new HashMap<>();
+        line.put("line", null);
+        assertEquals(1, DataStore.updateWhere(em, Address.class, "line:\"The Shire\"", line));
+        assertEquals(1L, DataStore.count(em, Address.class, "line::isnull"));
+    }
+
+    @Test
+    public void saveAll() {
+        List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < 7; i++)
+            addresses.add(new Address().withLine("line " + i));
+        List<Long> commits = new ArrayList<>();
+        assertEquals(7, DataStore.saveAll(em, addresses, DataStore.Batch.of(2).commitEvery(3).onCommit(commits::add)));
+        assertEquals(Lists.of(3L, 6L, 7L), commits);
+        assertEquals(7L, DataStore.count(em, Address.class));
+        assertFalse(em.contains(addresses.get(6)));
+
+        // the first two were committed by an earlier run, saving in a transaction of its own leaves em as it was
+        Address kept = DataStore.findOne(em, Address.class, "line:\"line 0\"").get();
+        List<Address> retry = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            retry.add(new Address().withLine("retry " + i));
+        assertEquals(2, DataStore.saveAll(em, retry, DataStore.Batch.of(1).resumeAt(2)));
+        assertEquals(2L, DataStore.count(em, Address.class, "line::startswith:retry"));
+        assertTrue(em.contains(kept));
+
+        // within the caller's transaction only the saved entities and what they cascaded to are let go of
+        List<Person> joined = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            joined.add(new Person().withName("joined " + i).withAddress(new Address().withLine("joined " + i)));
+        EntityTransaction trx = em.getTransaction();
+        trx.begin();
+        assertEquals(3, DataStore.saveAll(em, joined, DataStore.Batch.of(2)));
+        assertTrue(em.contains(kept));
+        joined.forEach(it -> {
+            assertFalse(em.contains(it));
+            assertFalse(em.contains(it.getAddress()));
+        });
+        trx.commit();
+        assertEquals(3L, DataStore.count(em, Address.class, "line::startswith:joined"));
+        assertEquals(3L, DataStore.count(em, Person.class, "name::startswith:joined"));
+    }
+
+    @Test
+    public void stream() {
+        TestData.random(7, 1, 1, em);
+        List<String> expected = DataStore.list(em, Person.class, Pager.of(1, 20).withSorting("name"))
+                .getPage().stream().map(Person::getName).collect(Collectors.toList());
+        em.clear();
+
+        List<Person> streamed;
+        try (Stream<Person> people = DataStore.stream(em, Person.class, "", Lists.of(Sort.of("name")), 3)) {
+            streamed = people.collect(Collectors.toList());
+        }
+        assertEquals(expected, streamed.stream().map(Person::getName).collect(Collectors.toList()));
+        streamed.forEach(it -> assertFalse(em.contains(it)));
+
+        try (Stream<Person> people = DataStore.stream(em, Person.class, "", 2)) {
+            assertEquals(3, people.limit(3).count());
+        }
+        assertEquals(0, DataStore.stream(em, Person.class, "name:nobody").count());
+    }
+
+    @Test
+    public void parallelCount() {
+        TestData.random(5, 2, 1, em);
+        Paged<Person> serial = DataStore.findAll(em, Person.class, "orders.amount::gte:0", Pager.of(1, 2), Fetch.Plan.none());
+        Paged<Person> parallel = DataStore.findAll(em
+                , Person.class
+                , "orders.amount::gte:0"
+                , Pager.of(1, 2).parallelCount()
+                , Fetch.get("orders").buildPlan());
+        assertEquals(5L, serial.getPager().getCount());
+        assertEquals(serial.getPager().getCount(), parallel.getPager().getCount());
+        assertEquals(2, parallel.getPage().size());
+
+        // the count runs with a copy of the pager the page query sets its results on
+        Pager pager = Pager.of(1, 2).parallelCount();
+        AtomicReference<Paginate> counted = new AtomicReference<>();
+        pager.withCountStrategy(new CountStrategy() {
+            @Override
+            public String name() {
+                return "copied";
+            }
+
+            @Override
+            public Long count(Counting<?> counting) {
+                counted.set(counting.getPager());
+                return counting.exact();
+            }
+        });
+        assertEquals(5L, DataStore.findAll(em, Person.class, "", pager, Fetch.Plan.none()).getPager().getCount());
+        assertNotSame(pager, counted.get());
+        assertEquals("copied", pager.getCountedBy());
+    }
+
+    @Test
+    public void countStrategies() {
+        TestData.random(5, 2, 1, em);
+        Paged<Person> exact = DataStore.findAll(em, Person.class, "", Pager.of(1, 2), Fetch.Plan.none());
+        assertEquals(5L, exact.getPager().getCount());
+        assertEquals("exact", exact.getPager().getCountedBy());
+
+        CountStrategy.Cached cached = (CountStrategy.Cached) CountStrategy.cached(Duration.ofMinutes(1));
+        cached.cache().clear().resetStats();
+        DataStore.findAll(em, Person.class, "", Pager.of(1, 2).withCountStrategy(cached), Fetch.Plan.none());
+        TestData.random(1, 1, 1, em);
+        // a strategy made per request shares the cache of its ttl
+        Paged<Person> hit = DataStore.findAll(em
+                , Person.class
+                , ""
+                , Pager.of(2, 2).withCountStrategy(CountStrategy.cached(Duration.ofMinutes(1)))
+                , Fetch.Plan.none());
+        assertEquals(1, cached.cache().hits());
+        assertEquals(5L, hit.getPager().getCount());
+        assertEquals("cached", hit.getPager().getCountedBy());
+
+        Paged<Person> more = DataStore.findAll(em, Person.class, "", Pager.of(1, 4).withCountStrategy(CountStrategy.hasMore()), Fetch.Plan.none());
+        assertEquals(4, more.getPage().size());
+        assertTrue(more.getPager().getMore());
+        assertTrue(more.getPager().hasNext());
+        assertEquals("has_more", more.getPager().getCountedBy());
+        Paged<Person> last = DataStore.findAll(em, Person.class, "", Pager.of(2, 4).withCountStrategy(CountStrategy.hasMore()), Fetch.Plan.none());
+        assertEquals(2, last.getPage().size());
+        assertFalse(last.getPager().getMore());
+        assertFalse(last.getPager().hasNext());
+        assertEquals(6L, last.getPager().getCount());
+
+        Paged<Person> capped = DataStore.findAll(em, Person.class, "", Pager.of(1, 2).withCountStrategy(CountStrategy.capped(3)), Fetch.Plan.none());
+        assertEquals(3L, capped.getPager().getCount());
+        assertEquals("capped", capped.getPager().getCountedBy());
+    }
+
     @Test
     public void crud() {
         DataStore.save(em,
@@ -296,6 +956,328 @@ public class JpaTest {
         assertTrue(DataStore.findAll(em, Person.class,"name:Zelda").getPage().isEmpty());
     }
 
+    @Test
+    public void entityCache() {
+        TestData.setupPeople(em);
+        Long id = DataStore.findOne(em, Person.class, "name:Snape").get().getId();
+        em.clear();
+        DataStore.entityCache().enable().ttl(Duration.ofMinutes(1)).resetStats();
+        try {
+            Person snape = DataStore.get(em, Person.class, id).get();
+            assertFalse(em.contains(snape));
+            // each caller gets a copy, a change which isn't saved stays with its caller
+            Person copy = DataStore.get(em, Person.class, id).get();
+            assertNotSame(snape, copy);
+            copy.setName("Unsaved");
+            assertEquals("Snape", DataStore.get(em, Person.class, id).get().getName());
+            assertEquals(2, DataStore.entityCache().hits());
+            assertEquals(1, DataStore.entityCache().misses());
+
+            // a transaction gets the entity its entity manager manages
+            em.getTransaction().begin();
+            try {
+                assertTrue(em.contains(DataStore.get(em, Person.class, id).get()));
+            } finally {
+                em.getTransaction().rollback();
+            }
+            em.clear();
+            assertEquals(2, DataStore.entityCache().hits());
+
+            // an @IdClass entity has no single id to cache it by
+            TestData.setupVehicles(em);
+            assertTrue(DataStore.get(em, Vehicle.class, new Vehicle.VehicleId("Mitsubishi", "Outlander")).isPresent());
+
+            // the update is evicted once the caller's transaction commits
+            int cached = DataStore.entityCache().size();
+            em.getTransaction().begin();
+            DataStore.update(em, snape.withName("Severus"));
+            assertEquals(cached, DataStore.entityCache().size());
+            em.getTransaction().commit();
+            em.clear();
+            assertEquals("Severus", DataStore.get(em, Person.class, id).get().getName());
+            assertEquals(0.5, DataStore.entityCache().hitRate(), 0.001);
+
+            DataStore.delete(em, DataStore.get(em, Person.class, id).get());
+            em.clear();
+            assertFalse(DataStore.get(em, Person.class, id).isPresent());
+        } finally {
+            DataStore.entityCache().disable().resetStats();
+        }
+    }
+
+    @Test
+    public void queryCache() {
+        TestData.setupPeople(em);
+        QueryCache.enable();
+        try {
+            Pager pager = Pager.of(1, 2).withSorting("name");
+            List<Person> page = DataStore.findAll(em, Person.class, "name::icontains:o", pager, Fetch.Plan.none())
+                    .getPage();
+            Cache<String, QueryCache.Entry> cache = QueryCache.of(Person.class);
+            assertEquals(1, cache.size());
+
+            // the same query spelled differently reads the ids from the cache
+            Paged<Person> cached = DataStore.findAll(em
+                    , Person.class
+                    , "name::icontains:\"o\""
+                    , Pager.of(1, 2).withSorting("name")
+                    , Fetch.Plan.none());
+            assertEquals(page, cached.getPage());
+            assertEquals(pager.getCount(), cached.getPager().getCount());
+            assertEquals(1, cache.hits());
+
+            Person ross = DataStore.findOne(em, Person.class, "name:Ross").get();
+            DataStore.update(em, ross.withName("Bob"));
+            assertEquals(0, cache.size());
+            assertEquals("Bob", DataStore.findAll(em
+                    , Person.class
+                    , "name::icontains:o"
+                    , Pager.of(1, 2).withSorting("name")
+                    , Fetch.Plan.none()).getPage().get(1).getName());
+
+            // a write to the address a query filters through clears the people queries
+            assertEquals(1, DataStore.findAll(em, Person.class, "address.line:\"The Shire\"", Pager.of()
+                    , Fetch.Plan.none()).getPage().size());
+            assertEquals(2, cache.size());
+            Address shire = DataStore.findOne(em, Address.class, "line:\"The Shire\"").get();
+            DataStore.update(em, shire.withLine("Bag End"));
+            assertEquals(0, cache.size());
+            assertTrue(DataStore.findAll(em, Person.class, "address.line:\"The Shire\"", Pager.of()
+                    , Fetch.Plan.none()).getPage().isEmpty());
+        } finally {
+            QueryCache.disable();
+        }
+    }
+
+    @Test
+    public void getAll() {
+        TestData.setupPeople(em);
+        TestData.setupVehicles(em);
+        List<Long> ids = DataStore.list(em, Person.class, Pager.of().withSorting("name:desc"))
+                .getPage().stream().map(Person::getId).collect(Collectors.toList());
+        em.clear();
+        int limit = Metadata.of(em).getInLimit();
+        try {
+            Metadata.of(em).inLimit(2);
+            List<Long> requested = new ArrayList<>(ids);
+            requested.add(2, -1L);
+            Retrieved<Long, Person> retrieved =
+                    DataStore.getAll(em, Person.class, requested, Fetch.join("address", "orders[]").buildPlan());
+            assertEquals(ids, retrieved.getEntities().stream().map(Person::getId).collect(Collectors.toList()));
+            assertEquals(Collections.singletonList(-1L), retrieved.getMissing());
+            assertFalse(retrieved.isComplete());
+            retrieved.getEntities().forEach(it -> {
+                assertTrue(util.isLoaded(it, "address"));
+                assertTrue(util.isLoaded(it, "orders"));
+            });
+        } finally {
+            Metadata.of(em).inLimit(limit);
+        }
+
+        Vehicle.VehicleId mirage = new Vehicle.VehicleId("Mitsubishi", "Mirage");
+        Retrieved<Vehicle.VehicleId, Vehicle> vehicles = DataStore.getAll(em
+                , Vehicle.class
+                , Arrays.asList(mirage, new Vehicle.VehicleId("Mitsubishi", "Outlander"))
+                , Fetch.get("tire").buildPlan());
+        assertTrue(vehicles.isComplete());
+        assertEquals("Mirage", vehicles.getEntities().get(0).getModel());
+        assertEquals(20, vehicles.getEntities().get(1).getTire().getId().getSize());
+
+        Retrieved<Tire.TireId, Tire> tires = DataStore.getAll(em
+                , Tire.class
+                , Arrays.asList(new Tire.TireId("Cooper", 13), new Tire.TireId("Cooper", 14)));
+        assertEquals("Cooper", tires.getEntities().get(0).getId().getMake());
+        assertEquals(Collections.singletonList(new Tire.TireId("Cooper", 14)), tires.getMissing());
+    }
+
+    @Test
+    public void session() {
+        TestData.setupPeople(em);
+        AtomicInteger opened = new AtomicInteger();
+        Store<Long, Person> store = new Store<Long, Person>() {
+            @Override
+            public EntityManager getEntityManager() {
+                opened.incrementAndGet();
+                return entityManagerFactory.createEntityManager();
+            }
+
+            @Override
+            public EntityManagerFactory getEntityManagerFactory() {
+                return entityManagerFactory;
+            }
+
+            @Override
+            public Class<Person> getEntityClass() {
+                return Person.class;
+            }
+        };
+
+        Person severus = store.session(s -> {
+            Person snape = store.FindOne("name:Snape").get();
+            snape.setName("Severus");
+            store.Update(snape);
+            assertSame(s, UnitOfWork.current());
+            return store.session(nested -> store.Retrieve(snape.getId()).get());
+        });
+        assertNull(UnitOfWork.current());
+        assertEquals(1, opened.get());
+        assertEquals("Severus", severus.getName());
+        assertTrue(DataStore.exists(em, Person.class, "name:Severus"));
+
+        store.session(UnitOfWork.Options.of().batched(), s -> {
+            Person bilbo = store.FindOne("name:Bilbo").get();
+            bilbo.setName("Frodo");
+            return store.Update(bilbo);
+        });
+        assertTrue(DataStore.exists(em, Person.class, "name:Frodo"));
+
+        store.session(UnitOfWork.Options.of().readOnly(), s -> {
+            Person ross = store.FindOne("name:Ross").get();
+            ross.setName("Bob");
+            return store.Update(ross);
+        });
+        assertFalse(DataStore.exists(em, Person.class, "name:Bob"));
+
+        assertThrows(IllegalStateException.class, () -> store.session(s -> {
+            Person ross = store.FindOne("name:Ross").get();
+            ross.setName("Bob");
+            store.Update(ross);
+            throw new IllegalStateException();
+        }));
+        assertFalse(DataStore.exists(em, Person.class, "name:Bob"));
+        assertEquals(4, opened.get());
+
+        // a nested session can't change whether the work is read only
+        assertThrows(IllegalStateException.class, () -> store.session(s ->
+                store.session(UnitOfWork.Options.of().readOnly(), nested -> null)));
+        assertThrows(IllegalStateException.class, () -> store.session(UnitOfWork.Options.of().readOnly(), s ->
+                store.session(nested -> null)));
+
+        // a store of another factory doesn't join the session
+        EntityManagerFactory other = replica("other");
+        try {
+            Store<Long, Person> otherStore = new Store<Long, Person>() {
+                @Override
+                public EntityManagerFactory getEntityManagerFactory() {
+                    return other;
+                }
+
+                @Override
+                public Class<Person> getEntityClass() {
+                    return Person.class;
+                }
+            };
+            store.session(s -> {
+                assertEquals(0, otherStore.Count());
+                otherStore.session(nested -> {
+                    assertNotSame(s, nested);
+                    return otherStore.Create(new Person().withName("Other").withAddress(new Address().withLine("far")));
+                });
+                assertSame(s, UnitOfWork.current());
+                assertEquals(1, otherStore.Count());
+                assertFalse(store.FindOne("name:Other").isPresent());
+                return null;
+            });
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void routing() {
+        TestData.setupPeople(em);
+        EntityManagerFactory replica1 = replica("replica1");
+        EntityManagerFactory replica2 = replica("replica2");
+        try {
+            EntityManager replicaEm = replica1.createEntityManager();
+            DataStore.save(replicaEm, new Person().withName("Replica").withAddress(new Address().withLine("copy")));
+            replicaEm.close();
+
+            Routing routing = Routing.of(entityManagerFactory, replica1, replica2)
+                    .readYourWrites(Duration.ofMinutes(1));
+            AtomicReference<Routing.Token> caller = new AtomicReference<>(routing.token());
+            Store<Long, Person> store = new Store<Long, Person>() {
+                @Override
+                public EntityManagerFactory getEntityManagerFactory() {
+                    return routing.getPrimary();
+                }
+
+                @Override
+                public Class<Person> getEntityClass() {
+                    return Person.class;
+                }
+
+                @Override
+                public Routing getRouting() {
+                    return routing;
+                }
+
+                @Override
+                public Routing.Token getToken() {
+                    return caller.get();
+                }
+            };
+
+            // round robin over the replicas, replica1 has one person and replica2 none
+            assertEquals(1, store.Count());
+            assertEquals(0, store.Count());
+            assertTrue(store.FindOne("name:Replica").isPresent());
+
+            // the writing caller reads from the primary until the window ends, from any thread
+            Person ross = DataStore.findOne(em, Person.class, "name:Ross").get();
+            ross.setName("Bob");
+            store.Update(ross);
+            assertTrue(store.FindOne("name:Bob").isPresent());
+            assertEquals(5, store.Count());
+            assertTrue(CompletableFuture.supplyAsync(() -> store.FindOne("name:Bob").isPresent()).join());
+
+            // another caller on the same thread reads from the replicas
+            Routing.Token writer = caller.getAndSet(routing.token());
+            assertFalse(store.FindOne("name:Bob").isPresent());
+            caller.set(writer);
+
+            routing.readYourWrites(Duration.ZERO).strategy(Routing.Strategy.LEAST_OUTSTANDING);
+            assertFalse(store.FindOne("name:Bob").isPresent());
+            store.read(outer -> {
+                assertEquals(1, routing.outstanding(0) + routing.outstanding(1));
+                // the nested read goes to the idle replica
+                assertNotEquals(DataStore.count(outer, Person.class), store.Count());
+                return null;
+            });
+            assertEquals(0, routing.outstanding(0) + routing.outstanding(1));
+            assertTrue(store.session(UnitOfWork.Options.of().readOnly(), s -> store.Count()) < 2);
+        } finally {
+            replica1.close();
+            replica2.close();
+        }
+    }
+
+    @Test
+    public void metadataRegistry() {
+        EntityManagerFactory closed = replica("closed");
+        assertTrue(Metadata.of(closed).isEntity(Person.class));
+        assertFalse(Metadata.of(closed).isEntity(String.class));
+        closed.close();
+
+        EntityManagerFactory open = replica("open");
+        try {
+            Metadata.of(open);
+            assertFalse(Metadata.isRegistered(closed));
+            assertTrue(Metadata.isRegistered(open));
+        } finally {
+            open.close();
+            Metadata.remove(open);
+        }
+        assertFalse(Metadata.isRegistered(open));
+    }
+
+    private static EntityManagerFactory replica(String name) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.url", String.format("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1", name));
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        return javax.persistence.Persistence.createEntityManagerFactory("my-pu", properties);
+    }
+
     @Test
     public void txTest() {
         try {